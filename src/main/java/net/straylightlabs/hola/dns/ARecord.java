@@ -44,6 +44,21 @@ public class ARecord extends Record {
         return address;
     }
 
+    @Override
+    protected boolean dataMatches(Record other) {
+        return address.equals(((ARecord) other).address);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public Type getType() {
+        return Type.A;
+    }
+
     @Override
     public String toString() {
         return "ARecord{" +
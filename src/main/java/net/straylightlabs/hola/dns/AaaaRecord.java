@@ -44,6 +44,21 @@ public class AaaaRecord extends Record {
         return address;
     }
 
+    @Override
+    protected boolean dataMatches(Record other) {
+        return address.equals(((AaaaRecord) other).address);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        return address.hashCode();
+    }
+
+    @Override
+    public Type getType() {
+        return Type.AAAA;
+    }
+
     @Override
     public String toString() {
         return "AaaaRecord{" +
@@ -36,7 +36,11 @@ public abstract class Message {
     private final static int USHORT_MASK = 0xFFFF;
 
     protected Message() {
-        buffer = ByteBuffer.allocate(MAX_LENGTH);
+        this(ByteBuffer.allocate(MAX_LENGTH));
+    }
+
+    protected Message(ByteBuffer buffer) {
+        this.buffer = buffer;
     }
 
     protected int readUnsignedShort() {
@@ -0,0 +1,195 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds mDNS query packets that hold several questions and, optionally, a known-answer list.
+ * <p>
+ * Names are written with DNS name compression (RFC 1035 section 4.1.4), so names that share a suffix, such as the
+ * instances of one service, only spell out that suffix once. The writer reuses a single buffer; call
+ * {@link #reset()} before building the next packet.
+ */
+public class PacketWriter {
+    private final ByteBuffer buffer;
+    private final Map<String, Integer> nameOffsets;
+    private int questionCount;
+    private int answerCount;
+    private boolean truncated;
+
+    private final static int HEADER_LENGTH = 12;
+    private final static int RECORD_FIXED_LENGTH = 10; // TYPE, CLASS, TTL, and RDLENGTH
+    private final static short TRUNCATED_FLAG = 0x0200;
+    private final static int MAX_POINTER_OFFSET = 0x3FFF;
+    private final static int POINTER_MASK = 0xC000;
+
+    /**
+     * Create a writer whose packets will never be longer than maxLength bytes.
+     *
+     * @param maxLength maximum packet length, in bytes
+     */
+    public PacketWriter(int maxLength) {
+        buffer = ByteBuffer.allocate(Math.min(maxLength, Message.MAX_LENGTH));
+        nameOffsets = new HashMap<>();
+        reset();
+    }
+
+    /**
+     * Discard the current packet and start a new, empty one.
+     */
+    public void reset() {
+        buffer.clear();
+        buffer.position(HEADER_LENGTH);
+        nameOffsets.clear();
+        questionCount = 0;
+        answerCount = 0;
+        truncated = false;
+    }
+
+    /**
+     * Append question to the current packet.
+     *
+     * @param question the question to add
+     * @return true if the question was added, false if the packet doesn't have room for it
+     */
+    public boolean addQuestion(Question question) {
+        if (answerCount > 0) {
+            throw new IllegalStateException("Questions must be added before known answers");
+        }
+        String name = trimTrailingDot(question.getQName());
+        // Worst case, when no part of the name can be compressed
+        int needed = name.getBytes(StandardCharsets.UTF_8).length + 2 + 4;
+        if (buffer.remaining() < needed) {
+            return false;
+        }
+        writeName(name);
+        buffer.putShort((short) question.getQType().asUnsignedShort());
+        buffer.putShort(Question.encodeClass(question.getQClass(), question.isUnicastResponse()));
+        questionCount++;
+        return true;
+    }
+
+    /**
+     * Append a known answer (RFC 6762 section 7.1) to the current packet.
+     * <p>
+     * The record is written with its remaining TTL, so responders can tell whether our copy is about to expire.
+     * Known answers must be added after all of the packet's questions.
+     *
+     * @param record a PTR record we already hold
+     * @return true if the record was added, false if the packet doesn't have room for it
+     */
+    public boolean addKnownAnswer(PtrRecord record) {
+        String name = trimTrailingDot(record.getName());
+        String target = trimTrailingDot(record.getPtrName());
+        int needed = name.getBytes(StandardCharsets.UTF_8).length + 2 + RECORD_FIXED_LENGTH +
+                target.getBytes(StandardCharsets.UTF_8).length + 2;
+        if (buffer.remaining() < needed) {
+            return false;
+        }
+        writeName(name);
+        buffer.putShort((short) Record.Type.PTR.asUnsignedShort());
+        buffer.putShort((short) record.recordClass.asUnsignedShort());
+        buffer.putInt((int) record.getRemainingTTL());
+        int rdLengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        writeName(target);
+        buffer.putShort(rdLengthPosition, (short) (buffer.position() - rdLengthPosition - 2));
+        answerCount++;
+        return true;
+    }
+
+    /**
+     * Mark the current packet as truncated, telling responders that more known answers follow in another packet.
+     *
+     * @param truncated true to set the TC bit
+     */
+    public void setTruncated(boolean truncated) {
+        this.truncated = truncated;
+    }
+
+    public int getQuestionCount() {
+        return questionCount;
+    }
+
+    public int getAnswerCount() {
+        return answerCount;
+    }
+
+    /**
+     * Fill in the header of the current packet and return it.
+     * <p>
+     * The returned buffer shares the writer's storage, so it must be sent before the writer is reset.
+     *
+     * @return a buffer positioned at the start of the packet, with its limit set to the packet's end
+     */
+    public ByteBuffer finish() {
+        buffer.putShort(0, (short) 0x0); // ID should be 0
+        buffer.putShort(2, truncated ? TRUNCATED_FLAG : 0x0); // Standard query
+        buffer.putShort(4, (short) questionCount);
+        buffer.putShort(6, (short) answerCount);
+        buffer.putShort(8, (short) 0x0); // 0 nameservers
+        buffer.putShort(10, (short) 0x0); // 0 additional records
+        ByteBuffer packet = buffer.duplicate();
+        packet.flip();
+        return packet;
+    }
+
+    private void writeName(String name) {
+        int start = 0;
+        while (start < name.length()) {
+            String suffix = name.substring(start);
+            Integer offset = nameOffsets.get(suffix);
+            if (offset != null) {
+                buffer.putShort((short) (POINTER_MASK | offset));
+                return;
+            }
+            if (buffer.position() <= MAX_POINTER_OFFSET) {
+                nameOffsets.put(suffix, buffer.position());
+            }
+            int end = name.indexOf('.', start);
+            if (end < 0) {
+                end = name.length();
+            }
+            byte[] label = name.substring(start, end).getBytes(StandardCharsets.UTF_8);
+            buffer.put((byte) (label.length & 0xff));
+            buffer.put(label);
+            start = end + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static String trimTrailingDot(String name) {
+        if (name.endsWith(".")) {
+            return name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+}
@@ -61,6 +61,21 @@ public class PtrRecord extends Record {
         }
     }
 
+    @Override
+    protected boolean dataMatches(Record other) {
+        return ptrName.equals(((PtrRecord) other).ptrName);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        return ptrName.hashCode();
+    }
+
+    @Override
+    public Type getType() {
+        return Type.PTR;
+    }
+
     @Override
     public String toString() {
         return "PtrRecord{" +
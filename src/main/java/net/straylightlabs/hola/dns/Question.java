@@ -37,71 +37,141 @@ import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Question extends Message {
     private final String qName;
     private final QType qType;
     private final QClass qClass;
+    private final boolean unicastResponse;
+    private final byte[] wireBytes;
 
     private final static Logger logger = LoggerFactory.getLogger(Question.class);
 
     private final static short UNICAST_RESPONSE_BIT = (short) 0x8000;
+    private final static int HEADER_LENGTH = 12;
+
+    /**
+     * Number of encoded questions to keep, so repeated queries don't need to re-encode their questions
+     */
+    private final static int WIRE_CACHE_SIZE = 256;
+
+    private final static Map<WireKey, byte[]> wireCache = Collections.synchronizedMap(
+            new LinkedHashMap<WireKey, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<WireKey, byte[]> eldest) {
+                    return size() > WIRE_CACHE_SIZE;
+                }
+            });
 
     public static Question fromBuffer(ByteBuffer buffer) {
         String name = Record.readNameFromBuffer(buffer);
         QType type = QType.fromInt(buffer.getShort() & Record.USHORT_MASK);
-        QClass qClass = QClass.fromInt(buffer.getShort() & Record.USHORT_MASK);
-        return new Question(name, type, qClass);
+        int classField = buffer.getShort() & Record.USHORT_MASK;
+        QClass qClass = QClass.fromInt(classField);
+        boolean unicastResponse = (classField & UNICAST_RESPONSE_BIT & Record.USHORT_MASK) != 0;
+        return new Question(name, type, qClass, unicastResponse);
     }
 
     public Question(String name, QType type, QClass qClass) {
-        super();
-        this.qName = name;
-        this.qType = type;
-        this.qClass = qClass;
-        build();
+        this(name, type, qClass, false);
+    }
+
+    /**
+     * Create a question, optionally asking responders to reply by unicast (a "QU" question, RFC 6762 section 5.4).
+     *
+     * @param name            name to ask about
+     * @param type            type of record wanted
+     * @param qClass          class of record wanted
+     * @param unicastResponse true to set the unicast-response bit
+     */
+    public Question(String name, QType type, QClass qClass, boolean unicastResponse) {
+        this(name, type, qClass, unicastResponse, wireBytesFor(name, type, qClass, unicastResponse));
     }
 
     public Question(Service service, Domain domain) {
-        super();
-        this.qName = service.getName() + "." + domain.getName();
-        this.qType = QType.PTR;
-        this.qClass = QClass.IN;
-        build();
+        this(service.getName() + "." + domain.getName(), QType.PTR, QClass.IN);
     }
 
-    private void build() {
-        buildHeader();
+    private Question(String name, QType type, QClass qClass, boolean unicastResponse, byte[] wireBytes) {
+        super(ByteBuffer.wrap(wireBytes).asReadOnlyBuffer());
+        this.qName = name;
+        this.qType = type;
+        this.qClass = qClass;
+        this.unicastResponse = unicastResponse;
+        this.wireBytes = wireBytes;
+    }
 
-        // QNAME
-        for (String label : qName.split("\\.")) {
-            addLabelToBuffer(label);
+    /**
+     * Get a copy of this question with the unicast-response bit set or cleared.
+     *
+     * @param unicastResponse true for a QU question, false for an ordinary multicast (QM) question
+     * @return this question if it already has the requested bit, otherwise a new Question
+     */
+    public Question withUnicastResponse(boolean unicastResponse) {
+        if (unicastResponse == this.unicastResponse) {
+            return this;
         }
-        addLabelToBuffer("");
-
-        // QTYPE
-        buffer.putShort((short) qType.asUnsignedShort());
-
-        // QCLASS
-        // TODO Figure out when to use to the unicast response bit
-//        buffer.putShort((short) (qClass.asUnsignedShort() | UNICAST_RESPONSE_BIT));
-        buffer.putShort((short) (qClass.asUnsignedShort()));
+        return new Question(qName, qType, qClass, unicastResponse);
     }
 
-    private void addLabelToBuffer(String label) {
-        byte[] labelBytes = label.getBytes();
-        buffer.put((byte) (labelBytes.length & 0xff));
-        buffer.put(labelBytes);
+    /**
+     * Get the encoded packet for a question, encoding it only if it isn't already in the cache.
+     */
+    private static byte[] wireBytesFor(String name, QType type, QClass qClass, boolean unicastResponse) {
+        WireKey key = new WireKey(name, type, qClass, unicastResponse);
+        byte[] bytes = wireCache.get(key);
+        if (bytes == null) {
+            bytes = encode(name, type, qClass, unicastResponse);
+            wireCache.put(key, bytes);
+        }
+        return bytes;
     }
 
-    private void buildHeader() {
-//        super.buildHeader();
+    /**
+     * Encode a complete single-question mDNS packet into an array of exactly the right length.
+     */
+    private static byte[] encode(String name, QType type, QClass qClass, boolean unicastResponse) {
+        String[] labels = name.split("\\.");
+        byte[][] labelBytes = new byte[labels.length][];
+        int length = HEADER_LENGTH;
+        for (int i = 0; i < labels.length; i++) {
+            labelBytes[i] = labels[i].getBytes(StandardCharsets.UTF_8);
+            length += 1 + labelBytes[i].length;
+        }
+        length += 1 + 4; // root label, QTYPE, and QCLASS
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
         buffer.putShort((short) 0x0); // ID should be 0
         buffer.put((byte) 0x0);
         buffer.put((byte) 0x0);
         buffer.putShort((short) 0x1); // 1 question
         buffer.putShort((short) 0x0); // 0 answers
         buffer.putInt(0x0); // no nameservers or additional records
+
+        // QNAME
+        for (byte[] label : labelBytes) {
+            buffer.put((byte) (label.length & 0xff));
+            buffer.put(label);
+        }
+        buffer.put((byte) 0);
+
+        // QTYPE
+        buffer.putShort((short) type.asUnsignedShort());
+
+        // QCLASS
+        buffer.putShort(encodeClass(qClass, unicastResponse));
+        return buffer.array();
+    }
+
+    static short encodeClass(QClass qClass, boolean unicastResponse) {
+        if (unicastResponse) {
+            return (short) (qClass.asUnsignedShort() | UNICAST_RESPONSE_BIT);
+        }
+        return (short) qClass.asUnsignedShort();
     }
 
     public void askOn(MulticastSocket socket, InetAddress group) throws IOException {
@@ -114,7 +184,7 @@ public class Question extends Message {
     }
 
     private void askWithGroup(InetAddress group, MulticastSocket socket) throws IOException {
-        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.position(), group, Query.MDNS_PORT);
+        DatagramPacket packet = new DatagramPacket(wireBytes, wireBytes.length, group, Query.MDNS_PORT);
         packet.setAddress(group);
         socket.send(packet);
     }
@@ -123,27 +193,55 @@ public class Question extends Message {
         return record.getName().equals(qName);
     }
 
-    String getQName() {
+    /**
+     * Get the encoded packet for this question. The array is shared and must not be modified.
+     */
+    byte[] getWireBytes() {
+        return wireBytes;
+    }
+
+    /**
+     * Get a read-only buffer holding the encoded packet for this question, ready to be sent.
+     */
+    public ByteBuffer toPacket() {
+        return ByteBuffer.wrap(wireBytes).asReadOnlyBuffer();
+    }
+
+    public String getQName() {
         return qName;
     }
 
-    QType getQType() {
+    public QType getQType() {
         return qType;
     }
 
-    QClass getQClass() {
+    public QClass getQClass() {
         return qClass;
     }
 
+    /**
+     * Check whether this question asks for a unicast response.
+     *
+     * @return true if the unicast-response bit is set
+     */
+    public boolean isUnicastResponse() {
+        return unicastResponse;
+    }
+
     @Override
     public String toString() {
         return "Question{" +
                 "qName=" + qName +
                 ", qType=" + qType +
                 ", qClass=" + qClass +
+                ", unicastResponse=" + unicastResponse +
                 '}';
     }
 
+    /**
+     * Questions are equal when they ask for the same name, type, and class; the unicast-response bit only changes
+     * how the answer is delivered, so it isn't compared.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -162,6 +260,40 @@ public class Question extends Message {
         return result;
     }
 
+    private static final class WireKey {
+        private final String name;
+        private final QType type;
+        private final QClass qClass;
+        private final boolean unicastResponse;
+
+        private WireKey(String name, QType type, QClass qClass, boolean unicastResponse) {
+            this.name = name;
+            this.type = type;
+            this.qClass = qClass;
+            this.unicastResponse = unicastResponse;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            WireKey key = (WireKey) o;
+
+            return name.equals(key.name) && type == key.type && qClass == key.qClass &&
+                    unicastResponse == key.unicastResponse;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = name.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + qClass.hashCode();
+            result = 31 * result + (unicastResponse ? 1 : 0);
+            return result;
+        }
+    }
+
     public enum QType {
         A(1),
         NS(2),
@@ -34,13 +34,16 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public abstract class Record {
     protected final String name;
     protected final long ttl;
+    protected final long receivedAt;
 
     protected final Class recordClass;
+    protected boolean cacheFlush;
 
     private final static Logger logger = LoggerFactory.getLogger(Record.class);
 
@@ -53,42 +56,51 @@ public abstract class Record {
         Type type = Type.fromInt(buffer.getShort() & USHORT_MASK);
 //        int rrClassByte = buffer.getShort() & 0x7FFF;
         int tmp = buffer.getShort() & 0xFFFF;
-        // FIXME allow the user to see that cache's should be flushed?
         boolean flushCache = (tmp & 0x8000) == 0x8000;
         int rrClassByte = tmp & 0x7FFF;
         Class recordClass = Class.fromInt(rrClassByte);
         long ttl = buffer.getInt() & UINT_MASK;
         int rdLength = buffer.getShort() & USHORT_MASK;
 
+        Record record;
         switch (type) {
             case A:
                 try {
-                    return new ARecord(buffer, name, recordClass, ttl);
+                    record = new ARecord(buffer, name, recordClass, ttl);
                 } catch (UnknownHostException e) {
                     throw new IllegalArgumentException("Buffer does not represent a valid A record");
                 }
+                break;
             case AAAA:
                 try {
-                    return new AaaaRecord(buffer, name, recordClass, ttl);
+                    record = new AaaaRecord(buffer, name, recordClass, ttl);
                 } catch (UnknownHostException e) {
                     throw new IllegalArgumentException("Buffer does not represent a valid AAAA record");
                 }
+                break;
             case PTR:
-                return new PtrRecord(buffer, name, recordClass, ttl, rdLength);
+                record = new PtrRecord(buffer, name, recordClass, ttl, rdLength);
+                break;
             case SRV:
-                return new SrvRecord(buffer, name, recordClass, ttl);
+                record = new SrvRecord(buffer, name, recordClass, ttl);
+                break;
             case TXT:
-                return new TxtRecord(buffer, name, recordClass, ttl, rdLength);
+                record = new TxtRecord(buffer, name, recordClass, ttl, rdLength);
+                break;
             default:
                 logger.debug("Buffer represents an unsupported record type, skipping ahead {} bytes", rdLength);
-                return new UnknownRecord(buffer, name, recordClass, ttl, rdLength);
+                record = new UnknownRecord(buffer, name, recordClass, ttl, rdLength);
+                break;
         }
+        record.cacheFlush = flushCache;
+        return record;
     }
 
     protected Record(String name, Class recordClass, long ttl) {
         this.name = name;
         this.recordClass = recordClass;
         this.ttl = ttl;
+        this.receivedAt = System.nanoTime();
     }
 
     public static String readNameFromBuffer(ByteBuffer buffer) {
@@ -156,6 +168,99 @@ public abstract class Record {
         return ttl;
     }
 
+    /**
+     * Check whether the sender set the cache-flush bit, meaning this record replaces any older records with the same
+     * name, type, and class (RFC 6762 section 10.2).
+     *
+     * @return true if the cache-flush bit was set
+     */
+    public boolean isCacheFlush() {
+        return cacheFlush;
+    }
+
+    /**
+     * Check whether this record is a "goodbye" record announcing that the resource is going away (RFC 6762 section
+     * 10.1).
+     *
+     * @return true if the record's TTL is zero
+     */
+    public boolean isGoodbye() {
+        return ttl == 0;
+    }
+
+    /**
+     * Check whether other describes the same resource as this record: the same name, type, class, and data. The
+     * TTL and flags are not compared.
+     *
+     * @param other the record to compare with
+     * @return true if both records describe the same resource
+     */
+    public boolean matches(Record other) {
+        return other != null && getType() == other.getType() && name.equals(other.name) &&
+                recordClass == other.recordClass && dataMatches(other);
+    }
+
+    /**
+     * Compare the RDATA of this record with that of other, a record of the same type.
+     */
+    protected abstract boolean dataMatches(Record other);
+
+    /**
+     * Compute a hash code from the RDATA of this record, consistent with {@link #dataMatches(Record)}.
+     */
+    protected abstract int dataHashCode();
+
+    /**
+     * Get the type of this record, as encoded in its TYPE field.
+     *
+     * @return the record's type
+     */
+    public abstract Type getType();
+
+    /**
+     * Get the time this record was received, as measured by {@link System#nanoTime()}.
+     *
+     * @return receive time in nanoseconds
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * Get the number of seconds this record remains valid, counting from when it was received.
+     *
+     * @return remaining TTL in seconds, or 0 if the record has expired
+     */
+    public long getRemainingTTL() {
+        long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - receivedAt);
+        return Math.max(ttl - elapsed, 0);
+    }
+
+    /**
+     * Records are equal when they {@link #matches(Record) match}, so a retransmitted record equals the copy that was
+     * received before it.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        return matches((Record) o);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = name.hashCode();
+        result = 31 * result + getType().hashCode();
+        result = 31 * result + recordClass.hashCode();
+        result = 31 * result + dataHashCode();
+        return result;
+    }
+
     @Override
     public String toString() {
         return "Record{" +
@@ -165,7 +270,7 @@ public abstract class Record {
                 '}';
     }
 
-    enum Type {
+    public enum Type {
         UNSUPPORTED(0),
         A(1),
         NS(2),
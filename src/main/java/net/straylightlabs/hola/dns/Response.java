@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class Response extends Message {
@@ -52,13 +53,29 @@ public class Response extends Message {
         return response;
     }
 
-    private Response() {
+    /**
+     * Parse a response directly from the bytes between buffer's position and limit, without copying them.
+     * <p>
+     * The buffer's position, limit, and contents are left unchanged. Every record is decoded before this method
+     * returns, so the caller may reuse the buffer afterwards; only {@link #dumpBuffer()} still refers to it.
+     *
+     * @param buffer buffer holding a single mDNS packet
+     * @return the parsed response
+     */
+    public static Response createFrom(ByteBuffer buffer) {
+        Response response = new Response(buffer.slice());
+        response.parseRecords();
+        return response;
+    }
+
+    private Response(ByteBuffer buffer) {
+        super(buffer);
         questions = new ArrayList<>();
         records = new ArrayList<>();
     }
 
     private Response(DatagramPacket packet) {
-        this();
+        this(ByteBuffer.allocate(MAX_LENGTH));
         byte[] dstBuffer = buffer.array();
         System.arraycopy(packet.getData(), packet.getOffset(), dstBuffer, 0, packet.getLength());
         buffer.limit(packet.getLength());
@@ -106,7 +123,16 @@ public class Response extends Message {
     }
 
     public Set<Record> getRecords() {
-        return new HashSet<>(Collections.unmodifiableSet(new HashSet<>(records)));
+        return Collections.unmodifiableSet(new HashSet<>(records));
+    }
+
+    /**
+     * Get every record in this response, in the order they appeared in the packet.
+     *
+     * @return an unmodifiable view of this response's records
+     */
+    public List<Record> getRecordList() {
+        return Collections.unmodifiableList(records);
     }
 
     public String getUserVisibleName() {
@@ -120,17 +146,15 @@ public class Response extends Message {
     }
 
     public boolean answers(Set<Question> questions) {
-        return (records.stream().filter(r -> {
-            boolean match = false;
+        return records.stream().anyMatch(r -> {
             String name = r.getName();
             for (Question q : questions) {
                 if (name.equals(q.getQName())) {
-                    match = true;
-                    break;
+                    return true;
                 }
             }
-            return match;
-        }).count() > 0);
+            return false;
+        });
     }
 
 
@@ -0,0 +1,198 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A quick check of a raw packet against the set of names someone is listening for.
+ * <p>
+ * Most mDNS traffic on a busy network is about services no Query asked for. Instead of decoding every record, this
+ * walks the packet's header and the owner names of its records, hashing each name's labels as it goes (following
+ * compression pointers), and looks the hash up in a sorted array. Checking a packet doesn't allocate.
+ * <p>
+ * A packet that passes may still be irrelevant, since different names can share a hash, but a packet that fails
+ * holds no record with any of the names.
+ */
+public final class ResponseFilter {
+    private final long[] hashes;
+
+    private final static int HEADER_LENGTH = 12;
+    private final static int QR_MASK = 0x8000;
+    private final static int OPCODE_MASK = 0x7800;
+    private final static int RCODE_MASK = 0xF;
+
+    /**
+     * Bytes between a record's owner name and its RDATA: TYPE, CLASS, TTL, and RDLENGTH
+     */
+    private final static int RECORD_FIXED_LENGTH = 10;
+    private final static int QUESTION_FIXED_LENGTH = 4;
+
+    /**
+     * A name can't take more jumps than this without looping
+     */
+    private final static int MAX_POINTERS = 64;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+    private final static long INVALID = 0;
+
+    private ResponseFilter(long[] hashes) {
+        this.hashes = hashes;
+    }
+
+    /**
+     * Build a filter that passes responses with a record named by one of names.
+     *
+     * @param names fully qualified names, in the form returned by {@link Record#getName()}
+     * @return a new filter
+     */
+    public static ResponseFilter forNames(Collection<String> names) {
+        long[] hashes = new long[names.size()];
+        int count = 0;
+        for (String name : names) {
+            hashes[count++] = hash(name);
+        }
+        hashes = Arrays.copyOf(hashes, count);
+        Arrays.sort(hashes);
+        return new ResponseFilter(hashes);
+    }
+
+    /**
+     * Check whether the packet between buffer's position and limit is a well-formed mDNS response that might hold
+     * a record with one of this filter's names. The buffer's position is left unchanged.
+     *
+     * @param buffer buffer holding a single packet
+     * @return false if the packet can be dropped without parsing it
+     */
+    public boolean mightMatch(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        if (hashes.length == 0 || limit - start < HEADER_LENGTH) {
+            return false;
+        }
+        int codes = buffer.getShort(start + 2) & 0xFFFF;
+        if ((codes & QR_MASK) == 0 || (codes & OPCODE_MASK) != 0 || (codes & RCODE_MASK) != 0) {
+            return false;
+        }
+        int numQuestions = buffer.getShort(start + 4) & 0xFFFF;
+        int numRecords = (buffer.getShort(start + 6) & 0xFFFF) + (buffer.getShort(start + 8) & 0xFFFF) +
+                (buffer.getShort(start + 10) & 0xFFFF);
+
+        int offset = start + HEADER_LENGTH;
+        for (int i = 0; i < numQuestions; i++) {
+            offset = skipName(buffer, offset);
+            if (offset < 0) {
+                return false;
+            }
+            offset += QUESTION_FIXED_LENGTH;
+        }
+        for (int i = 0; i < numRecords; i++) {
+            long hash = hashName(buffer, start, offset);
+            if (hash == INVALID) {
+                return false;
+            }
+            if (Arrays.binarySearch(hashes, hash) >= 0) {
+                return true;
+            }
+            offset = skipName(buffer, offset);
+            if (offset < 0 || offset + RECORD_FIXED_LENGTH > limit) {
+                return false;
+            }
+            offset += RECORD_FIXED_LENGTH + (buffer.getShort(offset + RECORD_FIXED_LENGTH - 2) & 0xFFFF);
+        }
+        return false;
+    }
+
+    /**
+     * Hash a name the same way {@link #hashName(ByteBuffer, int, int)} hashes it on the wire: each label's bytes
+     * followed by a dot.
+     */
+    static long hash(String name) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return hash == INVALID ? 1 : hash;
+    }
+
+    /**
+     * Hash the encoded name at offset, following compression pointers relative to the packet starting at start.
+     *
+     * @return the name's hash, or INVALID if the name runs past the packet or loops
+     */
+    private static long hashName(ByteBuffer buffer, int start, int offset) {
+        long hash = FNV_OFFSET_BASIS;
+        int limit = buffer.limit();
+        int pointers = 0;
+        while (offset < limit) {
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                if (offset + 1 >= limit || ++pointers > MAX_POINTERS) {
+                    return INVALID;
+                }
+                offset = start + (((length & 0x3F) << 8) | (buffer.get(offset + 1) & 0xFF));
+                continue;
+            }
+            if (length == 0) {
+                return hash == INVALID ? 1 : hash;
+            }
+            if (offset + 1 + length > limit) {
+                return INVALID;
+            }
+            for (int i = offset + 1; i <= offset + length; i++) {
+                hash = (hash ^ (buffer.get(i) & 0xFF)) * FNV_PRIME;
+            }
+            hash = (hash ^ '.') * FNV_PRIME;
+            offset += 1 + length;
+        }
+        return INVALID;
+    }
+
+    /**
+     * Find the end of the encoded name at offset, without following compression pointers.
+     *
+     * @return the offset just past the name, or -1 if it runs past the packet
+     */
+    private static int skipName(ByteBuffer buffer, int offset) {
+        int limit = buffer.limit();
+        while (offset < limit) {
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0xC0) == 0xC0) {
+                return offset + 2 <= limit ? offset + 2 : -1;
+            }
+            if (length == 0) {
+                return offset + 1;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+}
@@ -58,6 +58,26 @@ public class SrvRecord extends Record {
         return target;
     }
 
+    @Override
+    protected boolean dataMatches(Record other) {
+        SrvRecord srv = (SrvRecord) other;
+        return priority == srv.priority && weight == srv.weight && port == srv.port && target.equals(srv.target);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        int result = priority;
+        result = 31 * result + weight;
+        result = 31 * result + port;
+        result = 31 * result + target.hashCode();
+        return result;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.SRV;
+    }
+
     @Override
     public String toString() {
         return "SrvRecord{" +
@@ -62,6 +62,21 @@ public class TxtRecord extends Record {
         return Collections.unmodifiableMap(attributes);
     }
 
+    @Override
+    protected boolean dataMatches(Record other) {
+        return attributes.equals(((TxtRecord) other).attributes);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        return attributes.hashCode();
+    }
+
+    @Override
+    public Type getType() {
+        return Type.TXT;
+    }
+
     @Override
     public String toString() {
         return "TxtRecord{" +
@@ -27,14 +27,32 @@
 package net.straylightlabs.hola.dns;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Handle records that we don't care about for mDNS-SD.
  */
 public class UnknownRecord extends Record {
+    private final byte[] data;
+
     public UnknownRecord(ByteBuffer buffer, String name, Record.Class recordClass, long ttl, int length) {
         super(name, recordClass, ttl);
-        byte[] toSkip = new byte[length];
-        buffer.get(toSkip);
+        data = new byte[length];
+        buffer.get(data);
+    }
+
+    @Override
+    protected boolean dataMatches(Record other) {
+        return Arrays.equals(data, ((UnknownRecord) other).data);
+    }
+
+    @Override
+    protected int dataHashCode() {
+        return Arrays.hashCode(data);
+    }
+
+    @Override
+    public Type getType() {
+        return Type.UNSUPPORTED;
     }
 }
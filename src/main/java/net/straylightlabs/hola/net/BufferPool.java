@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of equally sized ByteBuffers.
+ * <p>
+ * Buffers are leased with {@link #lease()} and handed back with {@link #release(ByteBuffer)}. When the pool is
+ * empty a new buffer is allocated; when it is full, released buffers are left for the garbage collector. Once the
+ * pool has warmed up, a receive loop that releases every buffer it leases does not allocate.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final AtomicLong allocations;
+
+    /**
+     * Create a pool that retains at most capacity buffers.
+     *
+     * @param bufferSize size of each buffer, in bytes
+     * @param capacity   maximum number of idle buffers to keep
+     * @param direct     true to allocate direct buffers, false for heap buffers
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.allocations = new AtomicLong();
+    }
+
+    /**
+     * Take a cleared buffer from the pool, allocating one if the pool is empty.
+     *
+     * @return a buffer with position 0 and limit equal to its capacity
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #lease()}. The caller must not use it afterwards.
+     *
+     * @param buffer the buffer to return
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            throw new IllegalArgumentException("Buffer was not leased from this pool");
+        }
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of idle buffers currently held by the pool.
+     *
+     * @return number of idle buffers
+     */
+    public int getIdleCount() {
+        return buffers.size();
+    }
+
+    /**
+     * Get the number of buffers this pool has allocated because it was empty when a lease was requested.
+     *
+     * @return number of allocations
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognizes datagrams whose payload is identical to one seen a short while ago.
+ * <p>
+ * Dual-stack responders send the same answer to both the IPv4 and IPv6 groups, and many devices repeat their
+ * announcements. The filter remembers a 64-bit hash of each recent payload in a small ring, so a copy can be dropped
+ * before it's parsed. Checking a packet doesn't allocate.
+ */
+class DuplicateFilter {
+    private final long window;
+    private final long[] hashes;
+    private final long[] seenAt;
+    private int next;
+    private long suppressed;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * @param windowMillis how long a payload is remembered, in milliseconds
+     * @param capacity     the most payloads remembered at once
+     */
+    DuplicateFilter(long windowMillis, int capacity) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.hashes = new long[capacity];
+        this.seenAt = new long[capacity];
+        clear();
+    }
+
+    /**
+     * Check whether packet's remaining bytes match a payload seen within the window, remembering them if not. The
+     * packet's position is left unchanged.
+     *
+     * @return true if packet is a duplicate and should be dropped
+     */
+    synchronized boolean isDuplicate(ByteBuffer packet) {
+        long hash = hash(packet);
+        long now = System.nanoTime();
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] == hash && seenAt[i] != 0 && now - seenAt[i] < window) {
+                suppressed++;
+                return true;
+            }
+        }
+        hashes[next] = hash;
+        seenAt[next] = now;
+        next = (next + 1) % hashes.length;
+        return false;
+    }
+
+    /**
+     * Forget every payload seen so far, so the next copy of each is let through.
+     */
+    synchronized void clear() {
+        Arrays.fill(seenAt, 0);
+    }
+
+    /**
+     * Get the number of packets this filter has reported as duplicates.
+     *
+     * @return number of suppressed packets
+     */
+    synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * FNV-1a over the packet's remaining bytes, mixed with their length.
+     */
+    static long hash(ByteBuffer packet) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = packet.position(); i < packet.limit(); i++) {
+            hash ^= packet.get(i) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash ^ packet.remaining();
+    }
+}
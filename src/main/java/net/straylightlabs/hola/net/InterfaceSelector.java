@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.sd.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the network interfaces that mDNS queries are sent on, and resolves the mDNS group addresses.
+ * <p>
+ * Both are worked out once and cached, so starting a Query doesn't depend on the host's name resolving. The shared
+ * selector re-checks the host's interfaces in the background and picks up any that come, go, or change address.
+ */
+public final class InterfaceSelector {
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService watcher;
+
+    private final static Logger logger = LoggerFactory.getLogger(InterfaceSelector.class);
+
+    public final static InetAddress MDNS_GROUP_IPV4 = groupAddress(Query.MDNS_IP4_ADDRESS);
+    public final static InetAddress MDNS_GROUP_IPV6 = groupAddress(Query.MDNS_IP6_ADDRESS);
+    public final static InetSocketAddress MDNS_ENDPOINT_IPV4 = new InetSocketAddress(MDNS_GROUP_IPV4, Query.MDNS_PORT);
+    public final static InetSocketAddress MDNS_ENDPOINT_IPV6 = new InetSocketAddress(MDNS_GROUP_IPV6, Query.MDNS_PORT);
+
+    /**
+     * The shared selector looks for changes to the host's interfaces this often
+     */
+    private final static long WATCH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private final static InterfaceSelector defaultSelector = new InterfaceSelector();
+
+    /**
+     * Get the selector shared by every Query in this process, which watches for interface changes.
+     *
+     * @return the shared selector
+     */
+    public static InterfaceSelector getDefault() {
+        defaultSelector.watch();
+        return defaultSelector;
+    }
+
+    InterfaceSelector() {
+    }
+
+    /**
+     * Get every interface that is up, supports multicast, and has an address, other than loopback and point-to-point
+     * interfaces.
+     *
+     * @return an unmodifiable list of interfaces, which may be empty
+     * @throws IOException thrown if the interfaces can't be listed
+     */
+    public List<NetworkInterface> getEligibleInterfaces() throws IOException {
+        return snapshot().eligible;
+    }
+
+    /**
+     * Get the interface a Query uses when it isn't told which one to run on. This is the eligible interface that
+     * multicast traffic is routed through, or failing that the first interface that supports multicast.
+     *
+     * @return the default interface
+     * @throws IOException thrown if the interfaces can't be listed, or none of them supports multicast
+     */
+    public NetworkInterface getDefaultInterface() throws IOException {
+        NetworkInterface defaultInterface = snapshot().defaultInterface;
+        if (defaultInterface == null) {
+            throw new IOException("No network interface supports multicast");
+        }
+        return defaultInterface;
+    }
+
+    /**
+     * Look at the host's interfaces again, replacing the cached selection.
+     *
+     * @throws IOException thrown if the interfaces can't be listed
+     */
+    public void refresh() throws IOException {
+        Snapshot current = Snapshot.take();
+        Snapshot previous = snapshot;
+        if (previous != null && !previous.equals(current)) {
+            logger.info("Network interfaces changed, now using {}", current.eligible);
+        }
+        snapshot = current;
+    }
+
+    private Snapshot snapshot() throws IOException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    refresh();
+                }
+                current = snapshot;
+            }
+        }
+        return current;
+    }
+
+    private synchronized void watch() {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "hola-interface-watch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (IOException e) {
+                logger.error("IOException while checking network interfaces: ", e);
+            }
+        }, WATCH_INTERVAL, WATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    static boolean isEligible(NetworkInterface networkInterface) throws SocketException {
+        return networkInterface.isUp() && networkInterface.supportsMulticast() && !networkInterface.isLoopback() &&
+                !networkInterface.isPointToPoint() && networkInterface.getInetAddresses().hasMoreElements();
+    }
+
+    private static InetAddress groupAddress(String literal) {
+        try {
+            return InetAddress.getByName(literal);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid mDNS group address " + literal, e);
+        }
+    }
+
+    /**
+     * The interfaces seen by one look at the host.
+     */
+    private static class Snapshot {
+        private final List<NetworkInterface> eligible;
+        private final NetworkInterface defaultInterface;
+
+        private Snapshot(List<NetworkInterface> eligible, NetworkInterface defaultInterface) {
+            this.eligible = eligible;
+            this.defaultInterface = defaultInterface;
+        }
+
+        private static Snapshot take() throws IOException {
+            List<NetworkInterface> eligible = new ArrayList<>();
+            NetworkInterface fallback = null;
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces != null) {
+                for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+                    if (isEligible(networkInterface)) {
+                        eligible.add(networkInterface);
+                    } else if (fallback == null && networkInterface.isUp() && networkInterface.supportsMulticast()) {
+                        fallback = networkInterface;
+                    }
+                }
+            }
+            NetworkInterface defaultInterface = routedInterface(eligible);
+            if (defaultInterface == null) {
+                defaultInterface = eligible.isEmpty() ? fallback : eligible.get(0);
+            }
+            return new Snapshot(Collections.unmodifiableList(eligible), defaultInterface);
+        }
+
+        /**
+         * Find which of the eligible interfaces the host routes multicast traffic through. Connecting a datagram
+         * socket only consults the routing table; nothing is sent and no names are resolved.
+         */
+        private static NetworkInterface routedInterface(List<NetworkInterface> eligible) {
+            try (DatagramSocket probe = new DatagramSocket()) {
+                probe.connect(MDNS_ENDPOINT_IPV4);
+                InetAddress local = probe.getLocalAddress();
+                if (local == null || local.isAnyLocalAddress()) {
+                    return null;
+                }
+                NetworkInterface routed = NetworkInterface.getByInetAddress(local);
+                return eligible.contains(routed) ? routed : null;
+            } catch (IOException e) {
+                logger.debug("Couldn't find the interface multicast traffic is routed through: ", e);
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Snapshot snapshot = (Snapshot) o;
+
+            if (!eligible.equals(snapshot.eligible)) return false;
+            return defaultInterface != null ? defaultInterface.equals(snapshot.defaultInterface) :
+                    snapshot.defaultInterface == null;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = eligible.hashCode();
+            result = 31 * result + (defaultInterface != null ? defaultInterface.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.dns.Message;
+import net.straylightlabs.hola.dns.PacketWriter;
+import net.straylightlabs.hola.dns.PtrRecord;
+import net.straylightlabs.hola.dns.Question;
+import net.straylightlabs.hola.dns.Record;
+import net.straylightlabs.hola.dns.Response;
+import net.straylightlabs.hola.dns.ResponseFilter;
+import net.straylightlabs.hola.sd.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The mDNS sockets for one network interface, shared by every Query in the process.
+ * <p>
+ * Each incoming datagram is parsed once and the resulting Response is routed to every {@link ResponseListener}
+ * subscribed to the name of one of its records. Transports are pooled: {@link #acquire} opens the interface's
+ * transport on first use, and once the last user calls {@link #release()} the transport stays open and joined for a
+ * while so the next Query on that interface can start sending right away.
+ * <p>
+ * IPv4 and IPv6 each get a channel of their own, registered separately with the ReceiveEngine, so a family that fails
+ * to join, send, or receive doesn't stop the other.
+ */
+public class MdnsTransport implements PacketListener {
+    private final NetworkInterface networkInterface;
+    private final ReceiveEngine engine;
+    private final Map<String, Set<ResponseListener>> subscriptions;
+    private final List<FamilyChannel> channels;
+    private final DuplicateFilter duplicates;
+    private volatile ResponseFilter filter;
+    private SourceFilter sources;
+    private long sourcesBuiltAt;
+    private QuestionBatcher batcher;
+    private int maxPacketLength;
+
+    private final static Logger logger = LoggerFactory.getLogger(MdnsTransport.class);
+
+    /**
+     * Questions passed to {@link #enqueue(Question)} are held for this many milliseconds so they can share a packet
+     */
+    private final static long BATCH_WINDOW = 20;
+
+    /**
+     * Room left for IP and UDP headers when sizing packets to the interface's MTU
+     */
+    private final static int PACKET_OVERHEAD = 48;
+    private final static int DEFAULT_MTU = 1500;
+
+    /**
+     * A datagram identical to one received within this many milliseconds is dropped before it's parsed
+     */
+    private final static long DUPLICATE_WINDOW = 1000;
+    private final static int DUPLICATE_CAPACITY = 64;
+
+    /**
+     * An interface's addresses are re-read at most this often when a datagram arrives from outside its subnets
+     */
+    private final static long SOURCE_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * A transport that no one is using is closed after this many milliseconds
+     */
+    private final static long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final static TransportPool<NetworkInterface, MdnsTransport> pool = new TransportPool<>(
+            new TransportPool.Factory<NetworkInterface, MdnsTransport>() {
+                @Override
+                public MdnsTransport open(NetworkInterface networkInterface) throws IOException {
+                    MdnsTransport transport = new MdnsTransport(networkInterface, ReceiveEngine.getDefault());
+                    transport.open();
+                    return transport;
+                }
+
+                @Override
+                public void close(MdnsTransport transport) {
+                    transport.close();
+                }
+            },
+            (task, delay) -> ReceiveEngine.getDefault().schedule(task, delay),
+            IDLE_TIMEOUT);
+
+    /**
+     * Get the shared transport for networkInterface, opening it if no one else is using it.
+     * <p>
+     * Each call must be balanced by a call to {@link #release()}.
+     *
+     * @param networkInterface the interface to send and receive on
+     * @return the interface's transport
+     * @throws IOException thrown on socket and network errors
+     */
+    public static MdnsTransport acquire(NetworkInterface networkInterface) throws IOException {
+        return pool.acquire(networkInterface);
+    }
+
+    /**
+     * Open the transport for networkInterface ahead of time, so the first Query on it doesn't wait for the mDNS
+     * groups to be joined. The transport is closed if nothing uses it within the idle timeout.
+     *
+     * @param networkInterface the interface to send and receive on
+     * @throws IOException thrown on socket and network errors
+     */
+    public static void prewarm(NetworkInterface networkInterface) throws IOException {
+        pool.prewarm(networkInterface);
+    }
+
+    /**
+     * Close every transport that isn't currently in use.
+     */
+    public static void closeIdle() {
+        pool.evictIdle();
+    }
+
+    /**
+     * Get the number of times {@link #acquire} found its interface's transport already open.
+     *
+     * @return number of pool hits
+     */
+    public static long getPoolHitCount() {
+        return pool.getHitCount();
+    }
+
+    /**
+     * Get the number of times {@link #acquire} had to open a new transport.
+     *
+     * @return number of pool misses
+     */
+    public static long getPoolMissCount() {
+        return pool.getMissCount();
+    }
+
+    /**
+     * Get the number of transports that are open but not in use.
+     *
+     * @return number of idle transports
+     */
+    public static int getIdleCount() {
+        return pool.getIdleCount();
+    }
+
+    /**
+     * Create a transport for networkInterface whose channels haven't been opened yet. Use {@link #acquire} to get an
+     * open, shared transport.
+     */
+    MdnsTransport(NetworkInterface networkInterface, ReceiveEngine engine) {
+        this.networkInterface = networkInterface;
+        this.engine = engine;
+        this.subscriptions = new ConcurrentHashMap<>();
+        this.channels = new ArrayList<>();
+        this.duplicates = new DuplicateFilter(DUPLICATE_WINDOW, DUPLICATE_CAPACITY);
+        this.filter = ResponseFilter.forNames(Collections.emptySet());
+        this.sources = SourceFilter.forInterface(networkInterface);
+        this.sourcesBuiltAt = System.nanoTime();
+    }
+
+    /**
+     * Give back a transport obtained from {@link #acquire}. Once every user has released it, the transport is kept
+     * open until it has been idle for a while.
+     */
+    public void release() {
+        pool.release(networkInterface);
+    }
+
+    /**
+     * Route responses with records named name to listener.
+     *
+     * @param name     a fully qualified DNS name, such as a Question's QNAME
+     * @param listener receives the matching responses
+     */
+    public void subscribe(String name, ResponseListener listener) {
+        if (subscriptions.computeIfAbsent(name, k -> new CopyOnWriteArraySet<>()).add(listener)) {
+            rebuildFilter();
+            // A copy of a response we've already routed may be the first one this listener gets to see
+            duplicates.clear();
+        }
+    }
+
+    /**
+     * Remove every subscription held by listener. Once this returns, listener will not be called again.
+     *
+     * @param listener a previously subscribed listener
+     */
+    public void unsubscribe(ResponseListener listener) {
+        engine.runAndWait(() -> subscriptions.values().removeIf(listeners -> {
+            listeners.remove(listener);
+            return listeners.isEmpty();
+        }));
+        rebuildFilter();
+    }
+
+    /**
+     * Recompile the names packets are pre-filtered against. Serialized so the filter published last was built after
+     * every change to the subscriptions that came before it.
+     */
+    private synchronized void rebuildFilter() {
+        filter = ResponseFilter.forNames(subscriptions.keySet());
+    }
+
+    /**
+     * Multicast question on every address family this transport joined.
+     *
+     * @param question the question to ask
+     * @throws IOException thrown on socket and network errors
+     */
+    public void send(Question question) throws IOException {
+        logger.debug("Asking question {}", question);
+        sendPacket(question.toPacket());
+    }
+
+    /**
+     * Multicast question along with a list of answers we already know (RFC 6762 section 7.1), so responders that
+     * see their own answer in the list don't send it again.
+     * <p>
+     * If the known answers don't fit in one packet, they continue in additional packets with the TC bit set on all
+     * but the last.
+     *
+     * @param question     the question to ask
+     * @param knownAnswers records we already hold that answer question
+     * @throws IOException thrown on socket and network errors
+     */
+    public void send(Question question, Collection<PtrRecord> knownAnswers) throws IOException {
+        if (knownAnswers.isEmpty()) {
+            send(question);
+            return;
+        }
+        logger.debug("Asking question {} with {} known answers", question, knownAnswers.size());
+        PacketWriter writer = new PacketWriter(maxPacketLength);
+        writer.addQuestion(question);
+        for (PtrRecord answer : knownAnswers) {
+            if (!writer.addKnownAnswer(answer)) {
+                writer.setTruncated(true);
+                sendPacket(writer.finish());
+                writer.reset();
+                if (!writer.addKnownAnswer(answer)) {
+                    logger.error("Known answer {} is too long to fit in a packet, dropping it", answer);
+                }
+            }
+        }
+        if (writer.getQuestionCount() > 0 || writer.getAnswerCount() > 0) {
+            sendPacket(writer.finish());
+        }
+    }
+
+    /**
+     * Queue question to be sent together with any other questions asked in the next few milliseconds.
+     * <p>
+     * Use this for follow-up questions, which tend to arrive in bursts; use {@link #send(Question)} when the
+     * question should go out immediately.
+     *
+     * @param question the question to ask
+     */
+    public void enqueue(Question question) {
+        batcher.add(question);
+    }
+
+    /**
+     * Multicast an already encoded packet on every address family this transport joined. A family that can't send
+     * is skipped; an exception is only thrown if no family could send the packet.
+     */
+    void sendPacket(ByteBuffer packet) throws IOException {
+        IOException failure = null;
+        boolean sent = false;
+        for (FamilyChannel channel : channels) {
+            try {
+                channel.send(packet.duplicate());
+                sent = true;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (!sent && failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Get the number of datagrams this transport dropped because they were identical to one received recently.
+     *
+     * @return number of suppressed datagrams
+     */
+    public long getSuppressedCount() {
+        return duplicates.getSuppressedCount();
+    }
+
+    public NetworkInterface getNetworkInterface() {
+        return networkInterface;
+    }
+
+    @Override
+    public void packetReceived(ByteBuffer buffer, SocketAddress source) {
+        logger.debug("Response received from {}", source);
+        if (subscriptions.isEmpty()) {
+            // An idle transport stays joined, but there's no one to parse responses for
+            return;
+        }
+        if (source instanceof InetSocketAddress && ((InetSocketAddress) source).getPort() != Query.MDNS_PORT) {
+            // Replies to our QU questions arrive here by unicast, but like multicast replies they must come from
+            // the mDNS port (RFC 6762 section 11)
+            logger.debug("Response did not come from the mDNS port, ignoring it");
+            return;
+        }
+        if (!filter.mightMatch(buffer)) {
+            // Most mDNS traffic is about names no one here asked for, so check before decoding any records
+            return;
+        }
+        if (!isFromThisLink(source)) {
+            // Our sockets are bound to the wildcard address, so they may also see the group's traffic from other
+            // interfaces; Queries on this interface must only hear about devices they can reach through it
+            logger.debug("Response did not come from {}'s link, ignoring it", networkInterface.getName());
+            return;
+        }
+        if (duplicates.isDuplicate(buffer)) {
+            logger.debug("Response is a copy of one received recently, ignoring it");
+            return;
+        }
+        Response response;
+        try {
+            response = Response.createFrom(buffer);
+        } catch (IllegalArgumentException e) {
+            logger.debug("Response was not a mDNS response packet, ignoring it");
+            return;
+        }
+        Set<ResponseListener> listeners = new LinkedHashSet<>();
+        for (Record record : response.getRecordList()) {
+            Set<ResponseListener> subscribed = subscriptions.get(record.getName());
+            if (subscribed != null) {
+                listeners.addAll(subscribed);
+            }
+        }
+        if (listeners.isEmpty()) {
+            logger.debug("This response doesn't answer any of our questions, ignoring it.");
+        }
+        for (ResponseListener listener : listeners) {
+            listener.responseReceived(response);
+        }
+    }
+
+    /**
+     * Check whether source belongs to our interface's link, as {@link SourceFilter} decides. Called on the
+     * ReceiveEngine's thread.
+     */
+    private boolean isFromThisLink(SocketAddress source) {
+        if (!(source instanceof InetSocketAddress)) {
+            return true;
+        }
+        InetAddress address = ((InetSocketAddress) source).getAddress();
+        if (sources.isOnLink(address)) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - sourcesBuiltAt < SOURCE_REFRESH_INTERVAL) {
+            return false;
+        }
+        // The interface may have been given a new address since we last looked
+        sourcesBuiltAt = now;
+        try {
+            NetworkInterface current = NetworkInterface.getByName(networkInterface.getName());
+            if (current != null) {
+                sources = SourceFilter.forInterface(current);
+            }
+        } catch (SocketException e) {
+            logger.debug("Couldn't re-read the addresses of {}: ", networkInterface.getName(), e);
+        }
+        return sources.isOnLink(address);
+    }
+
+    private void open() throws IOException {
+        FamilyChannel ipv4 = new FamilyChannel(StandardProtocolFamily.INET, InterfaceSelector.MDNS_ENDPOINT_IPV4);
+        FamilyChannel ipv6 = new FamilyChannel(StandardProtocolFamily.INET6, InterfaceSelector.MDNS_ENDPOINT_IPV6);
+        try {
+            if (ipv4.open()) {
+                channels.add(ipv4);
+            } else {
+                logger.error("Couldn't join {} on {}, IPv4-only hosts will not be found", Query.MDNS_IP4_ADDRESS,
+                        networkInterface.getName());
+            }
+            if (ipv6.open()) {
+                channels.add(ipv6);
+            } else {
+                logger.error("Couldn't join {} on {}, IPv6-only hosts will not be found", Query.MDNS_IP6_ADDRESS,
+                        networkInterface.getName());
+            }
+            if (channels.isEmpty()) {
+                throw new IOException("No usable network interfaces found");
+            }
+            maxPacketLength = maxPacketLength();
+            batcher = new QuestionBatcher(this, engine, maxPacketLength, BATCH_WINDOW);
+            for (FamilyChannel channel : channels) {
+                engine.register(channel.channel, this);
+            }
+        } catch (IOException e) {
+            channels.forEach(FamilyChannel::close);
+            channels.clear();
+            throw e;
+        }
+        logger.debug("Opened mDNS transport on {}", networkInterface);
+    }
+
+    private int maxPacketLength() throws SocketException {
+        int mtu = networkInterface.getMTU();
+        if (mtu <= 0) {
+            mtu = DEFAULT_MTU;
+        }
+        return Math.min(mtu - PACKET_OVERHEAD, Message.MAX_LENGTH);
+    }
+
+    private void close() {
+        batcher.cancel();
+        for (FamilyChannel channel : channels) {
+            engine.unregister(channel.channel);
+            channel.close();
+        }
+        channels.clear();
+        subscriptions.clear();
+        logger.debug("Closed mDNS transport on {}", networkInterface);
+    }
+
+    /**
+     * The channel for one address family, bound to the mDNS port and joined to that family's group.
+     */
+    private class FamilyChannel {
+        private final StandardProtocolFamily family;
+        private final InetSocketAddress endpoint;
+        private DatagramChannel channel;
+        private volatile boolean sendFailing;
+
+        private FamilyChannel(StandardProtocolFamily family, InetSocketAddress endpoint) {
+            this.family = family;
+            this.endpoint = endpoint;
+        }
+
+        /**
+         * Open the channel and join the group.
+         *
+         * @return false if this family can't be used on the interface
+         */
+        private boolean open() {
+            try {
+                channel = DatagramChannel.open(family);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(Query.MDNS_PORT));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 10);
+                channel.join(endpoint.getAddress(), networkInterface);
+                return true;
+            } catch (IOException | IllegalArgumentException | UnsupportedOperationException e) {
+                logger.debug("Exception when opening {} channel: ", family, e);
+                close();
+                return false;
+            }
+        }
+
+        private void send(ByteBuffer packet) throws IOException {
+            try {
+                channel.send(packet, endpoint);
+                if (sendFailing) {
+                    logger.info("Sending to {} on {} works again", endpoint, networkInterface.getName());
+                    sendFailing = false;
+                }
+            } catch (IOException e) {
+                if (!sendFailing) {
+                    logger.warn("Can't send to {} on {}: {}", endpoint, networkInterface.getName(), e.getMessage());
+                    sendFailing = true;
+                }
+                throw e;
+            }
+        }
+
+        private void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("IOException while closing {} channel: ", family, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.dns.PacketWriter;
+import net.straylightlabs.hola.dns.Question;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the questions asked on a transport over a short window and sends them together.
+ * <p>
+ * Each flush packs as many questions as fit into one packet, and only starts another packet when the next question
+ * would push it past the transport's maximum packet length. Asking the same question twice within a window sends it
+ * once.
+ */
+class QuestionBatcher {
+    private final MdnsTransport transport;
+    private final ReceiveEngine engine;
+    private final PacketWriter writer;
+    private final long window;
+    private final Set<Question> pending;
+    private ReceiveEngine.Timer flushTimer;
+
+    private final static Logger logger = LoggerFactory.getLogger(QuestionBatcher.class);
+
+    QuestionBatcher(MdnsTransport transport, ReceiveEngine engine, int maxPacketLength, long window) {
+        this.transport = transport;
+        this.engine = engine;
+        this.writer = new PacketWriter(maxPacketLength);
+        this.window = window;
+        this.pending = new LinkedHashSet<>();
+    }
+
+    /**
+     * Queue question to be sent when the current window closes.
+     */
+    synchronized void add(Question question) {
+        if (pending.add(question) && flushTimer == null) {
+            flushTimer = engine.schedule(this::flush, window);
+        }
+    }
+
+    /**
+     * Drop any questions that haven't been sent yet.
+     */
+    synchronized void cancel() {
+        if (flushTimer != null) {
+            flushTimer.cancel();
+            flushTimer = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Called on the ReceiveEngine's thread when the window closes.
+     */
+    private void flush() {
+        List<Question> batch;
+        synchronized (this) {
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            flushTimer = null;
+        }
+        writer.reset();
+        for (Question question : batch) {
+            if (!writer.addQuestion(question)) {
+                send();
+                if (!writer.addQuestion(question)) {
+                    logger.error("Question {} is too long to fit in a packet, dropping it", question);
+                }
+            }
+        }
+        send();
+    }
+
+    private void send() {
+        if (writer.getQuestionCount() == 0) {
+            return;
+        }
+        logger.debug("Sending {} batched questions", writer.getQuestionCount());
+        try {
+            transport.sendPacket(writer.finish());
+        } catch (IOException e) {
+            logger.error("IOException while sending batched questions: ", e);
+        }
+        writer.reset();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.dns.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread that receives datagrams for any number of channels.
+ * <p>
+ * Each registered channel is paired with a {@link PacketListener}. The engine waits on a {@link Selector} and hands
+ * every datagram to the listener of the channel it arrived on, so many queries and network interfaces can share one
+ * thread instead of each parking a thread in a blocking receive.
+ * <p>
+ * The engine also runs {@link Timer}s, so work such as periodic re-queries happens on the same thread as the
+ * packets it relates to.
+ */
+public class ReceiveEngine {
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks;
+    private final PriorityQueue<Timer> timers;
+    private final BufferPool bufferPool;
+    private final Thread thread;
+    private volatile boolean running;
+
+    private final static Logger logger = LoggerFactory.getLogger(ReceiveEngine.class);
+
+    /**
+     * Maximum number of idle receive buffers the engine keeps for reuse
+     */
+    private final static int BUFFER_POOL_CAPACITY = 8;
+
+    private static ReceiveEngine defaultEngine;
+
+    /**
+     * Get the engine shared by every Query in this process, starting it if necessary.
+     *
+     * @return the shared engine
+     * @throws IOException thrown if the engine's Selector can't be opened
+     */
+    public static synchronized ReceiveEngine getDefault() throws IOException {
+        if (defaultEngine == null || !defaultEngine.isRunning()) {
+            defaultEngine = new ReceiveEngine();
+            defaultEngine.start();
+        }
+        return defaultEngine;
+    }
+
+    public ReceiveEngine() throws IOException {
+        selector = Selector.open();
+        pendingTasks = new ConcurrentLinkedQueue<>();
+        timers = new PriorityQueue<>();
+        bufferPool = new BufferPool(Message.MAX_LENGTH, BUFFER_POOL_CAPACITY, false);
+        thread = new Thread(this::run, "hola-receive-engine");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the pool that receive buffers are leased from.
+     *
+     * @return the engine's buffer pool
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Start delivering datagrams that arrive on channel to listener.
+     * <p>
+     * The channel is switched to non-blocking mode. Datagrams that arrived before the registration completes are
+     * still delivered, since they wait in the socket's receive buffer.
+     *
+     * @param channel  an open, bound channel
+     * @param listener receives each datagram
+     * @throws IOException thrown if the channel can't be switched to non-blocking mode
+     */
+    public void register(DatagramChannel channel, PacketListener listener) throws IOException {
+        channel.configureBlocking(false);
+        submit(() -> {
+            try {
+                channel.register(selector, SelectionKey.OP_READ, listener);
+            } catch (IOException e) {
+                logger.error("Could not register channel {}: ", channel, e);
+            }
+        });
+    }
+
+    /**
+     * Stop delivering datagrams from channel.
+     * <p>
+     * When called from outside the engine's thread, this blocks until the engine has processed the request; once it
+     * returns, the channel's listener will not be called again.
+     *
+     * @param channel a previously registered channel
+     */
+    public void unregister(DatagramChannel channel) {
+        runAndWait(() -> {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null) {
+                key.cancel();
+            }
+        });
+    }
+
+    /**
+     * Run task on the engine's thread and wait for it to finish.
+     * <p>
+     * This is how callers on other threads make sure a change is visible before the next packet is delivered.
+     *
+     * @param task the work to perform
+     */
+    public void runAndWait(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            await(submit(task));
+        }
+    }
+
+    /**
+     * Run task on the engine's thread after delay milliseconds.
+     *
+     * @param task  the work to perform
+     * @param delay milliseconds to wait before running task
+     * @return a Timer that can be used to cancel task before it runs
+     */
+    public Timer schedule(Runnable task, long delay) {
+        Timer timer = new Timer(this, task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+        if (Thread.currentThread() == thread) {
+            timers.add(timer);
+        } else {
+            submit(() -> timers.add(timer));
+        }
+        return timer;
+    }
+
+    /**
+     * Take a cancelled timer off the queue, so neither it nor its task is kept until it would have been due.
+     */
+    private void removeTimer(Timer timer) {
+        if (Thread.currentThread() == thread) {
+            timers.remove(timer);
+        } else {
+            submit(() -> timers.remove(timer));
+        }
+    }
+
+    /**
+     * Get the number of timers waiting to run.
+     */
+    int getTimerCount() {
+        int[] count = new int[1];
+        runAndWait(() -> count[0] = timers.size());
+        return count[0];
+    }
+
+    /**
+     * Stop the engine's thread and close its Selector. Registered channels are not closed.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private FutureTask<Void> submit(Runnable task) {
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        pendingTasks.add(future);
+        selector.wakeup();
+        return future;
+    }
+
+    private void await(FutureTask<Void> future) {
+        if (!running) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the receive engine: ", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.error("Receive engine task failed: ", e);
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select(millisUntilNextTimer());
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receiveFrom(key);
+                    }
+                }
+                runDueTimers();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.error("Receive engine stopped: ", e);
+        } finally {
+            running = false;
+            runPendingTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("IOException while closing selector: ", e);
+            }
+        }
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private long millisUntilNextTimer() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0; // Block until a packet or task arrives
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+        return Math.max(millis, 1);
+    }
+
+    private void runDueTimers() {
+        long now = System.nanoTime();
+        Timer timer;
+        while ((timer = timers.peek()) != null && timer.due - now <= 0) {
+            timers.poll();
+            Runnable task = timer.task;
+            if (!timer.cancelled && task != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timer task failed: ", e);
+                }
+            }
+        }
+    }
+
+    private void receiveFrom(SelectionKey key) {
+        DatagramChannel channel = (DatagramChannel) key.channel();
+        PacketListener listener = (PacketListener) key.attachment();
+        ByteBuffer buffer = bufferPool.lease();
+        try {
+            SocketAddress source;
+            while (key.isValid() && (source = channel.receive(buffer)) != null) {
+                buffer.flip();
+                deliver(listener, buffer, source);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            logger.error("IOException while receiving on {}, dropping channel: ", channel, e);
+            key.cancel();
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private void deliver(PacketListener listener, ByteBuffer packet, SocketAddress source) {
+        try {
+            listener.packetReceived(packet, source);
+        } catch (RuntimeException e) {
+            logger.error("Listener failed to handle packet from {}: ", source, e);
+        }
+    }
+
+    /**
+     * A task scheduled to run on the engine's thread.
+     */
+    public static final class Timer implements Comparable<Timer> {
+        private final ReceiveEngine engine;
+        private final long due;
+        private volatile Runnable task;
+        private volatile boolean cancelled;
+
+        private Timer(ReceiveEngine engine, Runnable task, long due) {
+            this.engine = engine;
+            this.task = task;
+            this.due = due;
+        }
+
+        /**
+         * Prevent this timer's task from running, if it hasn't already, and release the task.
+         */
+        public void cancel() {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            task = null;
+            engine.removeTimer(this);
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(due - other.due, 0);
+        }
+    }
+}
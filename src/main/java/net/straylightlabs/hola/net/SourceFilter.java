@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.straylightlabs.hola.net;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recognizes datagrams sent from the link a network interface is attached to.
+ * <p>
+ * Transports bind the wildcard address, and on some platforms a socket joined to the mDNS group on one interface
+ * also receives the group's traffic from every other interface. Responses whose source is on one of the interface's
+ * subnets are the ones that belong to it. Every link shares the IPv6 link-local prefix, so IPv6 link-local sources
+ * are told apart by the scope they were received on instead.
+ */
+class SourceFilter {
+    private final int interfaceIndex;
+    private final List<byte[]> networks;
+    private final List<Integer> prefixLengths;
+
+    /**
+     * @param interfaceIndex the index of the interface, which IPv6 link-local sources must be scoped to
+     */
+    SourceFilter(int interfaceIndex) {
+        this.interfaceIndex = interfaceIndex;
+        this.networks = new ArrayList<>();
+        this.prefixLengths = new ArrayList<>();
+    }
+
+    /**
+     * Build a filter for the subnets networkInterface's addresses are on.
+     */
+    static SourceFilter forInterface(NetworkInterface networkInterface) {
+        SourceFilter filter = new SourceFilter(networkInterface.getIndex());
+        for (InterfaceAddress address : networkInterface.getInterfaceAddresses()) {
+            filter.addNetwork(address.getAddress(), address.getNetworkPrefixLength());
+        }
+        return filter;
+    }
+
+    /**
+     * Accept sources whose first prefixLength bits match address. Only called while the filter is being built.
+     */
+    void addNetwork(InetAddress address, int prefixLength) {
+        networks.add(address.getAddress());
+        prefixLengths.add(prefixLength);
+    }
+
+    /**
+     * Check whether source is on one of this filter's subnets or, for IPv6 link-local sources, was received on the
+     * interface. IPv4 link-local sources are only accepted if the interface has a link-local address of its own.
+     *
+     * @return true if a datagram from source belongs to the interface
+     */
+    boolean isOnLink(InetAddress source) {
+        if (source instanceof Inet6Address && source.isLinkLocalAddress()) {
+            return ((Inet6Address) source).getScopeId() == interfaceIndex;
+        }
+        byte[] bytes = source.getAddress();
+        for (int i = 0; i < networks.size(); i++) {
+            if (matches(networks.get(i), prefixLengths.get(i), bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(byte[] network, int prefixLength, byte[] address) {
+        if (network.length != address.length) {
+            return false;
+        }
+        int bits = Math.min(prefixLength, network.length * 8);
+        int i = 0;
+        for (; bits >= 8; bits -= 8, i++) {
+            if (network[i] != address[i]) {
+                return false;
+            }
+        }
+        if (bits == 0) {
+            return true;
+        }
+        int mask = 0xff << (8 - bits);
+        return (network[i] & mask) == (address[i] & mask);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps one transport per key open for as long as it's borrowed, and for a while after it was last returned.
+ * <p>
+ * Opening a transport means binding a socket and joining the mDNS groups, which costs time and sends membership
+ * reports to the network. Keeping idle transports around lets queries that follow each other borrow a channel that's
+ * already joined. A transport that stays idle for longer than the pool's idle timeout is closed.
+ *
+ * @param <K> identifies a transport, such as its network interface
+ * @param <T> the type of transport
+ */
+class TransportPool<K, T> {
+    private final Factory<K, T> factory;
+    private final Scheduler scheduler;
+    private final long idleTimeout;
+    private final Map<K, Entry<T>> entries;
+    private long hits;
+    private long misses;
+
+    private final static Logger logger = LoggerFactory.getLogger(TransportPool.class);
+
+    /**
+     * Opens and closes the pool's transports.
+     */
+    interface Factory<K, T> {
+        T open(K key) throws IOException;
+
+        void close(T transport);
+    }
+
+    /**
+     * Runs the pool's idle evictions after a delay.
+     */
+    interface Scheduler {
+        ReceiveEngine.Timer schedule(Runnable task, long delay) throws IOException;
+    }
+
+    /**
+     * @param factory     opens and closes transports
+     * @param scheduler   runs idle evictions
+     * @param idleTimeout milliseconds to keep an unused transport open, or 0 to close it as soon as it's returned
+     */
+    TransportPool(Factory<K, T> factory, Scheduler scheduler, long idleTimeout) {
+        this.factory = factory;
+        this.scheduler = scheduler;
+        this.idleTimeout = idleTimeout;
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Borrow the transport for key, opening it if the pool doesn't have one. Each call must be balanced by a call to
+     * {@link #release(Object)}.
+     */
+    T acquire(K key) throws IOException {
+        synchronized (entries) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                entry.cancelEviction();
+            } else {
+                misses++;
+                entry = new Entry<>(factory.open(key));
+                entries.put(key, entry);
+            }
+            entry.references++;
+            return entry.transport;
+        }
+    }
+
+    /**
+     * Open the transport for key if the pool doesn't have one, leaving it idle so the next borrower finds it ready.
+     */
+    void prewarm(K key) throws IOException {
+        Entry<T> closing;
+        synchronized (entries) {
+            if (entries.containsKey(key)) {
+                return;
+            }
+            Entry<T> entry = new Entry<>(factory.open(key));
+            entries.put(key, entry);
+            if (scheduleEviction(key, entry)) {
+                return;
+            }
+            entries.remove(key);
+            closing = entry;
+        }
+        factory.close(closing.transport);
+    }
+
+    /**
+     * Return a transport borrowed with {@link #acquire(Object)}.
+     */
+    void release(K key) {
+        Entry<T> closing = null;
+        synchronized (entries) {
+            Entry<T> entry = entries.get(key);
+            if (entry == null || entry.references == 0) {
+                throw new IllegalStateException("No transport was borrowed for " + key);
+            }
+            entry.references--;
+            if (entry.references == 0 && !scheduleEviction(key, entry)) {
+                entries.remove(key);
+                closing = entry;
+            }
+        }
+        if (closing != null) {
+            factory.close(closing.transport);
+        }
+    }
+
+    /**
+     * Close every transport that isn't currently borrowed.
+     */
+    void evictIdle() {
+        List<Entry<T>> closing = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Entry<T>> iterator = entries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.references == 0) {
+                    entry.cancelEviction();
+                    iterator.remove();
+                    closing.add(entry);
+                }
+            }
+        }
+        closing.forEach(entry -> factory.close(entry.transport));
+    }
+
+    /**
+     * Get the number of borrowers that were given a transport that was already open.
+     */
+    long getHitCount() {
+        synchronized (entries) {
+            return hits;
+        }
+    }
+
+    /**
+     * Get the number of borrowers that had to wait for a transport to be opened.
+     */
+    long getMissCount() {
+        synchronized (entries) {
+            return misses;
+        }
+    }
+
+    /**
+     * Get the number of open transports that aren't currently borrowed.
+     */
+    int getIdleCount() {
+        synchronized (entries) {
+            int idle = 0;
+            for (Entry<T> entry : entries.values()) {
+                if (entry.references == 0) {
+                    idle++;
+                }
+            }
+            return idle;
+        }
+    }
+
+    /**
+     * Arrange for entry to be closed once it has been idle for the idle timeout. Must be called while holding the
+     * lock on entries.
+     *
+     * @return false if the entry should be closed right away instead
+     */
+    private boolean scheduleEviction(K key, Entry<T> entry) {
+        if (idleTimeout <= 0) {
+            return false;
+        }
+        try {
+            entry.evictionTimer = scheduler.schedule(() -> evictIfIdle(key, entry), idleTimeout);
+            return true;
+        } catch (IOException e) {
+            logger.error("IOException while scheduling idle eviction for {}: ", key, e);
+            return false;
+        }
+    }
+
+    private void evictIfIdle(K key, Entry<T> entry) {
+        synchronized (entries) {
+            if (entry.references > 0 || entries.get(key) != entry) {
+                return;
+            }
+            entries.remove(key);
+        }
+        logger.debug("Closing idle transport for {}", key);
+        factory.close(entry.transport);
+    }
+
+    private static class Entry<T> {
+        private final T transport;
+        private int references;
+        private ReceiveEngine.Timer evictionTimer;
+
+        private Entry(T transport) {
+            this.transport = transport;
+        }
+
+        private void cancelEviction() {
+            if (evictionTimer != null) {
+                evictionTimer.cancel();
+                evictionTimer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+/**
+ * Receives changes to the set of Instances found by a continuously running Query.
+ * <p>
+ * Methods are called on the ReceiveEngine's thread, so implementations should return quickly.
+ */
+public interface BrowseListener {
+    /**
+     * Called when a new Instance is found.
+     *
+     * @param instance the new Instance
+     */
+    void instanceAdded(Instance instance);
+
+    /**
+     * Called when a previously found Instance is no longer available.
+     *
+     * @param instance the Instance that went away
+     */
+    void instanceRemoved(Instance instance);
+
+    /**
+     * Called when the addresses, port, or attributes of a previously found Instance change.
+     *
+     * @param instance the Instance's new state
+     */
+    void instanceUpdated(Instance instance);
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import java.net.NetworkInterface;
+import java.util.*;
+
+/**
+ * The Instances a Query found on several network interfaces at once, merged into one set while remembering which
+ * interfaces each Instance was found on.
+ * <p>
+ * A device reachable through several interfaces has different addresses on each, so Instances are merged by name: the
+ * merged Instance has the addresses found on every interface.
+ */
+public class BrowseResult {
+    private final Map<NetworkInterface, Set<Instance>> byInterface;
+    private final Map<String, Instance> byName;
+    private final Map<String, Set<NetworkInterface>> interfacesByName;
+
+    BrowseResult(Map<NetworkInterface, Set<Instance>> found) {
+        byInterface = new LinkedHashMap<>();
+        byName = new LinkedHashMap<>();
+        interfacesByName = new HashMap<>();
+        for (Map.Entry<NetworkInterface, Set<Instance>> entry : found.entrySet()) {
+            byInterface.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+            for (Instance instance : entry.getValue()) {
+                byName.merge(instance.getName(), instance, Instance::mergedWith);
+                interfacesByName.computeIfAbsent(instance.getName(), k -> new LinkedHashSet<>()).add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Get every Instance found on any interface, with one Instance for each name.
+     *
+     * @return an unmodifiable set of Instances
+     */
+    public Set<Instance> getInstances() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(byName.values()));
+    }
+
+    /**
+     * Get the interfaces that were browsed, including those where nothing was found.
+     *
+     * @return an unmodifiable set of interfaces
+     */
+    public Set<NetworkInterface> getInterfaces() {
+        return Collections.unmodifiableSet(byInterface.keySet());
+    }
+
+    /**
+     * Get the Instances found on networkInterface.
+     *
+     * @return an unmodifiable set of Instances, which is empty if networkInterface wasn't browsed
+     */
+    public Set<Instance> getInstancesOn(NetworkInterface networkInterface) {
+        Set<Instance> instances = byInterface.get(networkInterface);
+        return instances != null ? instances : Collections.emptySet();
+    }
+
+    /**
+     * Get the interfaces that an Instance named like instance was found on.
+     *
+     * @return an unmodifiable set of interfaces, which is empty if instance wasn't found
+     */
+    public Set<NetworkInterface> getInterfacesFor(Instance instance) {
+        Set<NetworkInterface> interfaces = interfacesByName.get(instance.getName());
+        return interfaces != null ? Collections.unmodifiableSet(interfaces) : Collections.emptySet();
+    }
+
+    @Override
+    public String toString() {
+        return "BrowseResult{" +
+                "byInterface=" + byInterface +
+                '}';
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Instances each Service and Domain resolved to most recently on each network interface, shared by every Query
+ * in the process.
+ * <p>
+ * An entry stays valid until the first of the records its Instances were built from reaches the end of its TTL.
+ * Until then a Query can answer from the entry right away and revalidate it in the background, so callers that
+ * run the same Query repeatedly only wait for the network the first time.
+ * <p>
+ * This class is thread-safe.
+ */
+class DiscoveryCache {
+    private final Map<Key, Entry> entries;
+    private final Set<Key> refreshing;
+    private final ExecutorService refresher;
+
+    private static final DiscoveryCache shared = new DiscoveryCache();
+
+    private final static Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    /**
+     * An entry isn't revalidated again until it's at least this old
+     */
+    private final static long MIN_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    static DiscoveryCache getShared() {
+        return shared;
+    }
+
+    DiscoveryCache() {
+        entries = new ConcurrentHashMap<>();
+        refreshing = ConcurrentHashMap.newKeySet();
+        refresher = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "hola-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the Instances service and domain last resolved to on the named interface, if none of their records have
+     * expired.
+     *
+     * @return an unmodifiable set of Instances, or null if nothing valid is cached
+     */
+    Set<Instance> lookup(String interfaceName, Service service, Domain domain) {
+        Entry entry = validEntry(new Key(interfaceName, service, domain));
+        return entry != null ? entry.instances : null;
+    }
+
+    /**
+     * Get the unexpired records service and domain last resolved from on the named interface.
+     *
+     * @return an unmodifiable list of records, which is empty if nothing is cached
+     */
+    List<Record> getRecords(String interfaceName, Service service, Domain domain) {
+        Entry entry = entries.get(new Key(interfaceName, service, domain));
+        if (entry == null) {
+            return Collections.emptyList();
+        }
+        List<Record> records = new ArrayList<>();
+        for (Record record : entry.records) {
+            if (record.getRemainingTTL() > 0) {
+                records.add(record);
+            }
+        }
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Remember the Instances a Query found, along with the records they were built from. Empty results aren't
+     * cached, so a later Query will search the network again.
+     */
+    void store(String interfaceName, Service service, Domain domain, Collection<Record> records,
+               Set<Instance> instances) {
+        Key key = new Key(interfaceName, service, domain);
+        if (instances.isEmpty()) {
+            entries.remove(key);
+            return;
+        }
+        List<Record> used = recordsUsedBy(new Question(service, domain), records);
+        long expiresAt = Long.MAX_VALUE;
+        for (Record record : used) {
+            long recordExpiresAt = record.getReceivedAt() + TimeUnit.SECONDS.toNanos(record.getTTL());
+            if (expiresAt == Long.MAX_VALUE || recordExpiresAt - expiresAt < 0) {
+                expiresAt = recordExpiresAt;
+            }
+        }
+        logger.debug("Caching {} instances of {}", instances.size(), service);
+        entries.put(key, new Entry(used, instances, expiresAt));
+    }
+
+    /**
+     * Run task on a background thread to revalidate the entry for service and domain on the named interface, unless
+     * that entry is being revalidated already or was stored very recently.
+     *
+     * @return true if task was started
+     */
+    boolean refreshInBackground(String interfaceName, Service service, Domain domain, Runnable task) {
+        Key key = new Key(interfaceName, service, domain);
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.storedAt < MIN_REFRESH_INTERVAL) {
+            return false;
+        }
+        if (!refreshing.add(key)) {
+            return false;
+        }
+        logger.debug("Refreshing cached instances of {} in the background", service);
+        refresher.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Exception while refreshing {}: ", service, e);
+            } finally {
+                refreshing.remove(key);
+            }
+        });
+        return true;
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private Entry validEntry(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            logger.debug("Cached instances of {} have expired", key.service);
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Find the PTR records answering question, plus the SRV, TXT, A, and AAAA records Instances are built from.
+     */
+    private static List<Record> recordsUsedBy(Question question, Collection<Record> records) {
+        Set<String> instanceNames = new HashSet<>();
+        for (Record record : records) {
+            if (record instanceof PtrRecord && question.answeredBy(record)) {
+                instanceNames.add(((PtrRecord) record).getPtrName());
+            }
+        }
+        Set<String> targets = new HashSet<>();
+        for (Record record : records) {
+            if (record instanceof SrvRecord && instanceNames.contains(record.getName())) {
+                targets.add(((SrvRecord) record).getTarget());
+            }
+        }
+        List<Record> used = new ArrayList<>();
+        for (Record record : records) {
+            if ((record instanceof PtrRecord && question.answeredBy(record)) ||
+                    ((record instanceof SrvRecord || record instanceof TxtRecord) &&
+                            instanceNames.contains(record.getName())) ||
+                    ((record instanceof ARecord || record instanceof AaaaRecord) &&
+                            targets.contains(record.getName()))) {
+                used.add(record);
+            }
+        }
+        return used;
+    }
+
+    private static class Key {
+        private final String interfaceName;
+        private final Service service;
+        private final Domain domain;
+
+        private Key(String interfaceName, Service service, Domain domain) {
+            this.interfaceName = interfaceName;
+            this.service = service;
+            this.domain = domain;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return interfaceName.equals(key.interfaceName) && service.equals(key.service) &&
+                    domain.equals(key.domain);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = interfaceName.hashCode();
+            result = 31 * result + service.hashCode();
+            result = 31 * result + domain.hashCode();
+            return result;
+        }
+    }
+
+    private static class Entry {
+        private final List<Record> records;
+        private final Set<Instance> instances;
+        private final long expiresAt;
+        private final long storedAt;
+
+        private Entry(List<Record> records, Set<Instance> instances, long expiresAt) {
+            this.records = records;
+            this.instances = Collections.unmodifiableSet(new HashSet<>(instances));
+            this.expiresAt = expiresAt;
+            this.storedAt = System.nanoTime();
+        }
+    }
+}
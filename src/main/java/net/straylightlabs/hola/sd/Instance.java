@@ -42,29 +42,25 @@ public class Instance {
 
     private final static Logger logger = LoggerFactory.getLogger(Instance.class);
 
-    static Instance createFromRecords(PtrRecord ptr, Set<Record> records) {
+    static Instance createFromRecords(PtrRecord ptr, RecordIndex records) {
         String name = ptr.getUserVisibleName();
         int port;
         List<InetAddress> addresses = new ArrayList<>();
         Map<String, String> attributes = Collections.emptyMap();
 
-        Optional<SrvRecord> srv = records.stream()
-                .filter(r -> r instanceof SrvRecord && r.getName().equals(ptr.getPtrName()))
+        Optional<SrvRecord> srv = records.get(ptr.getPtrName(), Record.Type.SRV).stream()
                 .map(r -> (SrvRecord) r).findFirst();
         if (srv.isPresent()) {
             logger.debug("Using SrvRecord {} to create instance for {}", srv, ptr);
             port = srv.get().getPort();
-            addresses.addAll(records.stream().filter(r -> r instanceof ARecord)
-                    .filter(r -> r.getName().equals(srv.get().getTarget())).map(r -> ((ARecord) r).getAddress())
-                    .collect(Collectors.toList()));
-            addresses.addAll(records.stream().filter(r -> r instanceof AaaaRecord)
-                    .filter(r -> r.getName().equals(srv.get().getTarget())).map(r -> ((AaaaRecord) r).getAddress())
-                    .collect(Collectors.toList()));
+            addresses.addAll(records.get(srv.get().getTarget(), Record.Type.A).stream()
+                    .map(r -> ((ARecord) r).getAddress()).collect(Collectors.toList()));
+            addresses.addAll(records.get(srv.get().getTarget(), Record.Type.AAAA).stream()
+                    .map(r -> ((AaaaRecord) r).getAddress()).collect(Collectors.toList()));
         } else {
             throw new IllegalStateException("Cannot create Instance when no SRV record is available");
         }
-        Optional<TxtRecord> txt = records.stream()
-                .filter(r -> r instanceof TxtRecord && r.getName().equals(ptr.getPtrName()))
+        Optional<TxtRecord> txt = records.get(ptr.getPtrName(), Record.Type.TXT).stream()
                 .map(r -> (TxtRecord) r).findFirst();
         if (txt.isPresent()) {
             logger.debug("Using TxtRecord {} to create attributes for {}", txt, ptr);
@@ -81,6 +77,16 @@ public class Instance {
         this.attributes = attributes;
     }
 
+    /**
+     * Combine this instance with the same instance as found on another network interface. The result has the
+     * addresses of both, and this instance's port and attributes.
+     */
+    Instance mergedWith(Instance other) {
+        List<InetAddress> merged = new ArrayList<>(addresses);
+        merged.addAll(other.addresses);
+        return new Instance(name, merged, port, attributes);
+    }
+
     /**
      * Get the user-visible name associated with this instance.
      * <p>
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Recent response latencies, kept for each network interface and for each Service on each interface, from which an
+ * adaptive Query picks its browsing timeout.
+ * <p>
+ * A latency is the time between sending a Query's initial question and resolving one of the Instances it found. The
+ * adaptive timeout is a high percentile of the recent latencies for the Query's Service on that interface, plus some
+ * headroom. When a Service hasn't been seen often enough on an interface, the latencies of every Service on the
+ * interface are used instead, and before that the Query's default timeout.
+ * <p>
+ * Latencies can only be measured up to the timeout they were observed under, so a device that answers later than the
+ * adaptive timeout would never show up in the samples. Every {@value #PROBE_INTERVAL}th timeout picked from a
+ * distribution is therefore at least the default timeout, giving slow devices a chance to be seen.
+ * <p>
+ * This class is thread-safe.
+ */
+class LatencyTracker {
+    private final Map<String, Samples> byInterface;
+    private final Map<String, Samples> byService;
+
+    private static final LatencyTracker shared = new LatencyTracker();
+
+    private final static Logger logger = LoggerFactory.getLogger(LatencyTracker.class);
+
+    /**
+     * Only this many of the most recent latencies are kept for each interface and Service
+     */
+    private final static int MAX_SAMPLES = 64;
+
+    /**
+     * A distribution needs this many latencies before we trust it
+     */
+    private final static int MIN_SAMPLES = 5;
+
+    private final static double PERCENTILE = 0.95;
+    private final static double HEADROOM = 1.5;
+
+    /**
+     * Adaptive timeouts never go below or above these bounds, in MS
+     */
+    private final static long MIN_TIMEOUT = 100;
+    private final static long MAX_TIMEOUT = 3000;
+
+    /**
+     * One in this many adaptive timeouts is a probe that waits at least the default timeout
+     */
+    final static int PROBE_INTERVAL = 10;
+
+    static LatencyTracker getShared() {
+        return shared;
+    }
+
+    LatencyTracker() {
+        byInterface = new HashMap<>();
+        byService = new HashMap<>();
+    }
+
+    /**
+     * Add the latencies, in MS, that one run of a Query for service observed on the named interface.
+     */
+    synchronized void record(String interfaceName, Service service, Collection<Long> latencies) {
+        if (latencies.isEmpty()) {
+            return;
+        }
+        Samples interfaceSamples = byInterface.computeIfAbsent(interfaceName, k -> new Samples());
+        Samples serviceSamples = byService.computeIfAbsent(serviceKey(interfaceName, service), k -> new Samples());
+        for (long latency : latencies) {
+            interfaceSamples.add(latency);
+            serviceSamples.add(latency);
+        }
+    }
+
+    /**
+     * Get the percentile of recent latencies for service on the named interface.
+     *
+     * @param percentile a fraction between 0 and 1
+     * @return latency in MS, or -1 if no latencies have been recorded
+     */
+    synchronized long getPercentile(String interfaceName, Service service, double percentile) {
+        Samples samples = byService.get(serviceKey(interfaceName, service));
+        return samples != null ? samples.percentile(percentile) : -1;
+    }
+
+    /**
+     * Pick a browsing timeout for service on the named interface.
+     *
+     * @param defaultTimeout time in MS to use until enough latencies have been recorded
+     * @return time in MS
+     */
+    synchronized long adaptiveTimeout(String interfaceName, Service service, long defaultTimeout) {
+        Samples samples = byService.get(serviceKey(interfaceName, service));
+        if (samples == null || samples.count < MIN_SAMPLES) {
+            samples = byInterface.get(interfaceName);
+        }
+        if (samples == null || samples.count < MIN_SAMPLES) {
+            return defaultTimeout;
+        }
+        long timeout = (long) (samples.percentile(PERCENTILE) * HEADROOM);
+        timeout = Math.max(MIN_TIMEOUT, Math.min(timeout, MAX_TIMEOUT));
+        if (++samples.timeoutsPicked % PROBE_INTERVAL == 0 && timeout < defaultTimeout) {
+            logger.debug("Probing for slow responders to {} on {} with the default timeout", service, interfaceName);
+            return defaultTimeout;
+        }
+        logger.debug("Adaptive timeout for {} on {} is {} ms", service, interfaceName, timeout);
+        return timeout;
+    }
+
+    private static String serviceKey(String interfaceName, Service service) {
+        return interfaceName + " " + service.getName();
+    }
+
+    /**
+     * A ring buffer of the most recent latencies.
+     */
+    private static class Samples {
+        private final long[] values = new long[MAX_SAMPLES];
+        private int count;
+        private int next;
+        private int timeoutsPicked;
+
+        private void add(long latency) {
+            values[next] = latency;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        private long percentile(double percentile) {
+            if (count == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(rank, count - 1))];
+        }
+    }
+}
@@ -27,44 +27,44 @@
 package net.straylightlabs.hola.sd;
 
 import net.straylightlabs.hola.dns.*;
-import net.straylightlabs.hola.utils.Utils;
+import net.straylightlabs.hola.net.InterfaceSelector;
+import net.straylightlabs.hola.net.MdnsTransport;
+import net.straylightlabs.hola.net.ReceiveEngine;
+import net.straylightlabs.hola.net.ResponseListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.*;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * A search for the Instances of a Service in a Domain.
+ * <p>
+ * A Query is thread-safe. Each run keeps its state in a context of its own, so a single Query can be run by several
+ * threads at once, run again once it finishes, and browse continuously while other threads run it once.
+ */
 public class Query {
     private final Service service;
     private final Domain domain;
     private final int browsingTimeout;
-    private final Lock socketLock;
-
-    private MulticastSocket socket;
-    private InetAddress mdnsGroupIPv4;
-    private InetAddress mdnsGroupIPv6;
-    private boolean isUsingIPv4;
-    private boolean isUsingIPv6;
-    private Question initialQuestion;
-    private Set<Question> questions;
-    private Set<Instance> instances;
-    private Set<Record> records;
-    private boolean listenerStarted;
-    private boolean listenerFinished;
+    private final boolean adaptiveTimeout;
+    private volatile boolean unicastResponse;
+    private volatile boolean sharedCacheEnabled;
+    private volatile Run continuousRun;
+    private volatile Run lastRun;
 
     private final static Logger logger = LoggerFactory.getLogger(Query.class);
 
     public static final String MDNS_IP4_ADDRESS = "224.0.0.251";
     public static final String MDNS_IP6_ADDRESS = "FF02::FB";
     public static final int MDNS_PORT = 5353;
-    private static final int WAIT_FOR_LISTENER_MS = 10; // Number of milliseconds to wait for the listener to start
     static final InetAddress TEST_SUITE_ADDRESS = null;
 
     /**
@@ -72,6 +72,16 @@ public class Query {
      */
     private static final int BROWSING_TIMEOUT = 750;
 
+    /**
+     * A continuous Query re-asks its question after this many milliseconds, doubling the interval each time
+     */
+    private static final long MIN_REQUERY_INTERVAL = 1000;
+
+    /**
+     * The interval between re-asked questions stops doubling once it reaches one hour (RFC 6762 section 5.2)
+     */
+    private static final long MAX_REQUERY_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
     /**
      * Create a Query for the given Service and Domain.
      *
@@ -94,16 +104,66 @@ public class Query {
      */
     @SuppressWarnings("unused")
     public static Query createWithTimeout(Service service, Domain domain, int timeout) {
-        return new Query(service, domain, timeout);
+        return new Query(service, domain, timeout, false);
+    }
+
+    /**
+     * Create a Query for the given Service and Domain that picks its timeout from the response latencies recently
+     * observed on the network interface it runs on.
+     * <p>
+     * Each run waits for a high percentile of the time earlier Queries for this Service took to resolve their
+     * Instances, with some headroom, so fast networks finish quickly while slow ones still get time to respond. Until
+     * enough latencies have been observed, the default timeout is used, and every so often a run uses it again so
+     * devices slower than the adaptive timeout can still be found.
+     *
+     * @param service service to search for
+     * @param domain  domain to search on
+     * @return a new Query object
+     */
+    @SuppressWarnings("unused")
+    public static Query createAdaptive(Service service, Domain domain) {
+        return new Query(service, domain, BROWSING_TIMEOUT, true);
     }
 
     private Query(Service service, Domain domain, int browsingTimeout) {
+        this(service, domain, browsingTimeout, false);
+    }
+
+    private Query(Service service, Domain domain, int browsingTimeout, boolean adaptiveTimeout) {
         this.service = service;
         this.domain = domain;
         this.browsingTimeout = browsingTimeout;
-        this.questions = new HashSet<>();
-        this.records = new HashSet<>();
-        this.socketLock = new ReentrantLock();
+        this.adaptiveTimeout = adaptiveTimeout;
+        this.sharedCacheEnabled = true;
+    }
+
+    /**
+     * Ask responders to reply to this Query's first question by unicast instead of multicast.
+     * <p>
+     * This sets the "QU" bit from RFC 6762 section 5.4 on the initial question of each run, which spares every
+     * other host on the network from receiving and parsing the replies. Later questions, including the re-queries
+     * of a continuous Query, are always multicast.
+     *
+     * @param unicastResponse true to request unicast replies to the initial question
+     */
+    @SuppressWarnings("unused")
+    public void setUnicastResponse(boolean unicastResponse) {
+        this.unicastResponse = unicastResponse;
+    }
+
+    /**
+     * Choose whether {@link #runOnce()} may answer from the Instances that an earlier Query for the same Service and
+     * Domain found on the same network interface.
+     * <p>
+     * This is enabled by default. While none of the records behind a cached answer have expired, runOnce() returns it
+     * without waiting and revalidates it in the background; otherwise runOnce() searches the network as usual and
+     * caches what it finds.
+     *
+     * @param sharedCacheEnabled false to always search the network
+     */
+    @SuppressWarnings("unused")
+    public void setSharedCacheEnabled(boolean sharedCacheEnabled) {
+        this.sharedCacheEnabled = sharedCacheEnabled;
     }
 
     /**
@@ -113,7 +173,43 @@ public class Query {
      * @throws IOException thrown on socket and network errors
      */
     public Set<Instance> runOnce() throws IOException {
-        return runOnceOn(InetAddress.getLocalHost());
+        NetworkInterface networkInterface = InterfaceSelector.getDefault().getDefaultInterface();
+        return runOnceOn(networkInterface, StopCondition.after(chooseTimeout(networkInterface)), null);
+    }
+
+    /**
+     * Synchronously runs the Query a single time, passing each Instance to consumer as soon as it is resolved.
+     * <p>
+     * An Instance is resolved once its SRV record and at least one of its A or AAAA records have arrived, so the
+     * first Instances usually reach consumer long before this method returns. Each Instance is passed to consumer at
+     * most once; the returned set holds the final version of every Instance. consumer is called from Hola's network
+     * thread, or from the calling thread for Instances found in the shared cache, so it should return quickly.
+     *
+     * @param consumer receives each Instance as it is resolved
+     * @return a list of Instances that match this Query
+     * @throws IOException thrown on socket and network errors
+     */
+    @SuppressWarnings("unused")
+    public Set<Instance> runOnce(Consumer<Instance> consumer) throws IOException {
+        NetworkInterface networkInterface = InterfaceSelector.getDefault().getDefaultInterface();
+        return runOnceOn(networkInterface, StopCondition.after(chooseTimeout(networkInterface)), consumer);
+    }
+
+    /**
+     * Synchronously runs the Query until condition says to stop.
+     * <p>
+     * Unlike {@link #runOnce()}, which always listens for the Query's full timeout, this returns as soon as
+     * condition's deadline passes or one of its early-exit conditions is met. The shared cache only answers if its
+     * Instances already meet condition's conditions for particular Instances; otherwise its records seed a search of
+     * the network.
+     *
+     * @param condition when to stop listening for responses
+     * @return a list of Instances that match this Query
+     * @throws IOException thrown on socket and network errors
+     */
+    @SuppressWarnings("unused")
+    public Set<Instance> runOnce(StopCondition condition) throws IOException {
+        return runOnceOn(InterfaceSelector.getDefault().getDefaultInterface(), condition, null);
     }
 
     /**
@@ -124,238 +220,922 @@ public class Query {
      * @throws IOException thrown on socket and network errors
      */
     public Set<Instance> runOnceOn(InetAddress localhost) throws IOException {
-        logger.debug("Running query on {}", localhost);
-        initialQuestion = new Question(service, domain);
-        instances = Collections.synchronizedSet(new HashSet<>());
-        try {
-            Thread listener = null;
-            if (localhost != TEST_SUITE_ADDRESS) {
-                openSocket(localhost);
-                listener = listenForResponses();
-                while (!isServerIsListening()) {
-                    logger.debug("Server is not yet listening");
-                }
-            }
-            ask(initialQuestion);
-            if (listener != null) {
-                try {
-                    listener.join();
-                } catch (InterruptedException e) {
-                    logger.error("InterruptedException while listening for mDNS responses: ", e);
+        return runOnceOn(localhost, null);
+    }
+
+    /**
+     * Synchronously runs the Query a single time, passing each Instance to consumer as soon as it is resolved.
+     *
+     * @param localhost address of the network interface to listen on
+     * @param consumer  receives each Instance as it is resolved, or null
+     * @return a list of Instances that match this Query
+     * @throws IOException thrown on socket and network errors
+     * @see #runOnce(Consumer)
+     */
+    public Set<Instance> runOnceOn(InetAddress localhost, Consumer<Instance> consumer) throws IOException {
+        NetworkInterface networkInterface = interfaceFor(localhost);
+        return runOnceOn(networkInterface, StopCondition.after(chooseTimeout(networkInterface)), consumer);
+    }
+
+    /**
+     * Find the network interface bound to localhost, or null when the test suite runs a Query without a network.
+     */
+    private static NetworkInterface interfaceFor(InetAddress localhost) throws IOException {
+        if (localhost == TEST_SUITE_ADDRESS) {
+            return null;
+        }
+        NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localhost);
+        if (networkInterface == null) {
+            throw new IOException("No network interface is bound to " + localhost);
+        }
+        return networkInterface;
+    }
+
+    /**
+     * Get the time in MS that a run on networkInterface should listen for responses.
+     */
+    private long chooseTimeout(NetworkInterface networkInterface) {
+        if (!adaptiveTimeout || networkInterface == null) {
+            return browsingTimeout;
+        }
+        return LatencyTracker.getShared().adaptiveTimeout(networkInterface.getName(), service, browsingTimeout);
+    }
+
+    /**
+     * Synchronously runs the Query until condition says to stop, passing each Instance to consumer as soon as it is
+     * resolved.
+     *
+     * @param localhost address of the network interface to listen on
+     * @param condition when to stop listening for responses
+     * @param consumer  receives each Instance as it is resolved, or null
+     * @return a list of Instances that match this Query
+     * @throws IOException thrown on socket and network errors
+     * @see #runOnce(StopCondition)
+     * @see #runOnce(Consumer)
+     */
+    public Set<Instance> runOnceOn(InetAddress localhost, StopCondition condition, Consumer<Instance> consumer)
+            throws IOException {
+        return runOnceOn(interfaceFor(localhost), condition, consumer);
+    }
+
+    private Set<Instance> runOnceOn(NetworkInterface networkInterface, StopCondition condition,
+                                    Consumer<Instance> consumer) throws IOException {
+        logger.debug("Running query on {} until {}", networkInterface, condition);
+        Run run = new Run(consumer, null, new Progress());
+        lastRun = run;
+        boolean useSharedCache = sharedCacheEnabled && networkInterface != null;
+        if (useSharedCache) {
+            Set<Instance> cached = DiscoveryCache.getShared().lookup(networkInterface.getName(), service, domain);
+            if (cached != null && condition.isMetBy(namesOf(cached))) {
+                logger.debug("Answering from the shared cache");
+                run.instances.addAll(cached);
+                if (consumer != null) {
+                    cached.forEach(consumer);
                 }
+                DiscoveryCache.getShared().refreshInBackground(networkInterface.getName(), service, domain,
+                        () -> refreshSharedCache(networkInterface));
+                return run.instances;
             }
-        } finally {
-            closeSocket();
         }
-        return instances;
+        run.browseOnce(networkInterface, useSharedCache, condition);
+        return run.instances;
+    }
+
+    private static Set<String> namesOf(Set<Instance> instances) {
+        Set<String> names = new HashSet<>();
+        instances.forEach(instance -> names.add(instance.getName()));
+        return names;
     }
 
-    private void ask(Question question) throws IOException {
-        if (questions.contains(question)) {
-            logger.debug("We've already asked {}, we won't ask again", question);
-            return;
+    /**
+     * Runs on a background thread to revalidate the shared cache's answer for this Query.
+     */
+    private void refreshSharedCache(NetworkInterface networkInterface) {
+        try {
+            new Run(null, null, new Progress()).browseOnce(networkInterface, true,
+                    StopCondition.after(chooseTimeout(networkInterface)));
+        } catch (IOException e) {
+            logger.error("IOException while refreshing the shared cache: ", e);
         }
+    }
 
-        questions.add(question);
-        if (isUsingIPv4) {
-            question.askOn(socket, mdnsGroupIPv4);
+    /**
+     * Synchronously runs the Query once on every eligible network interface at the same time.
+     *
+     * @return the Instances found on each interface
+     * @throws IOException thrown on socket and network errors, or if no interface could be browsed
+     * @see #runOnceOnAllInterfaces(StopCondition, Consumer)
+     */
+    @SuppressWarnings("unused")
+    public BrowseResult runOnceOnAllInterfaces() throws IOException {
+        return runOnceOnAllInterfaces(null, null);
+    }
+
+    /**
+     * Synchronously runs the Query once on every eligible network interface at the same time, passing each Instance
+     * to consumer as soon as it is resolved.
+     * <p>
+     * An interface is eligible if it is up, supports multicast, has an address, and is neither loopback nor
+     * point-to-point. Every interface is queried at once over the same network thread, so this takes about as long
+     * as the slowest interface rather than the sum of them all. condition applies to the merged results: an Instance
+     * found on several interfaces only counts once towards its early-exit conditions, and is passed to consumer once.
+     * Interfaces that can't be browsed are logged and left out of the result. The shared cache isn't used, so every
+     * interface is searched.
+     *
+     * @param condition when to stop listening for responses, or null to use this Query's timeout
+     * @param consumer  receives each Instance as it is resolved, or null
+     * @return the Instances found on each interface
+     * @throws IOException thrown on socket and network errors, or if no interface could be browsed
+     */
+    public BrowseResult runOnceOnAllInterfaces(StopCondition condition, Consumer<Instance> consumer)
+            throws IOException {
+        List<NetworkInterface> interfaces = InterfaceSelector.getDefault().getEligibleInterfaces();
+        if (interfaces.isEmpty()) {
+            throw new IOException("No network interface supports multicast");
         }
-        if (isUsingIPv6) {
-            question.askOn(socket, mdnsGroupIPv6);
+        if (condition == null) {
+            long timeout = 0;
+            for (NetworkInterface networkInterface : interfaces) {
+                timeout = Math.max(timeout, chooseTimeout(networkInterface));
+            }
+            condition = StopCondition.after(timeout);
         }
-    }
+        logger.debug("Running query on {} until {}", interfaces, condition);
 
-    private boolean isServerIsListening() {
-        boolean retval;
+        Consumer<Instance> mergedConsumer = consumer != null ? oncePerName(consumer) : null;
+        Progress progress = new Progress();
+        Map<NetworkInterface, Run> runs = new LinkedHashMap<>();
         try {
-            while (!socketLock.tryLock(WAIT_FOR_LISTENER_MS, TimeUnit.MILLISECONDS)) {
-                socketLock.notify();
-                logger.debug("Waiting to acquire socket lock");
+            for (NetworkInterface networkInterface : interfaces) {
+                Run run = new Run(mergedConsumer, null, progress);
+                try {
+                    run.openTransport(networkInterface);
+                    run.askInitialQuestion();
+                    runs.put(networkInterface, run);
+                } catch (IOException e) {
+                    logger.warn("Can't browse on {}: ", networkInterface.getName(), e);
+                    run.closeTransport();
+                }
             }
-            if (listenerFinished) {
-                throw new RuntimeException("Listener has already finished");
+            if (runs.isEmpty()) {
+                throw new IOException("Couldn't browse on any network interface");
             }
-            retval = listenerStarted;
-        } catch (InterruptedException e) {
-            logger.error("Interrupted while waiting to acquire socket lock: ", e);
-            throw new RuntimeException("Server is not listening");
+            progress.await(condition);
         } finally {
-            socketLock.unlock();
+            runs.values().forEach(Run::closeTransport);
+        }
+
+        Map<NetworkInterface, Set<Instance>> found = new LinkedHashMap<>();
+        for (Map.Entry<NetworkInterface, Run> entry : runs.entrySet()) {
+            Run run = entry.getValue();
+            run.recordLatencies();
+            run.buildInstancesFromRecords();
+            found.put(entry.getKey(), run.instances);
         }
-        return retval;
+        return new BrowseResult(found);
+    }
+
+    /**
+     * Wrap consumer so it only receives the first Instance with each name. A device found on several interfaces
+     * resolves to a different Instance on each, since its addresses differ, so the name is what identifies it.
+     */
+    static Consumer<Instance> oncePerName(Consumer<Instance> consumer) {
+        Set<String> emitted = ConcurrentHashMap.newKeySet();
+        return instance -> {
+            if (emitted.add(instance.getName())) {
+                consumer.accept(instance);
+            }
+        };
     }
 
     /**
-     * Asynchronously runs the Query in a new thread.
+     * Asynchronously runs the Query until {@link #stop()} is called.
+     * <p>
+     * The Query keeps its channel open, periodically re-asks its question, and reports each change to the set of
+     * discovered Instances to listener.
+     *
+     * @param listener receives Instance added, removed, and updated events
+     * @throws IOException thrown on socket and network errors
      */
     @SuppressWarnings("unused")
-    public void start() {
-        throw new RuntimeException("Not implemented yet");
+    public void start(BrowseListener listener) throws IOException {
+        startOn(InterfaceSelector.getDefault().getDefaultInterface(), listener);
     }
 
-    private void openSocket(InetAddress localhost) throws IOException {
-        mdnsGroupIPv4 = InetAddress.getByName(MDNS_IP4_ADDRESS);
-        mdnsGroupIPv6 = InetAddress.getByName(MDNS_IP6_ADDRESS);
-        socket = new MulticastSocket(MDNS_PORT);
-        socket.setInterface(localhost);
-        try {
-            socket.joinGroup(mdnsGroupIPv4);
-            isUsingIPv4 = true;
-        } catch (SocketException e) {
-            logger.error("SocketException when joining group for {}, IPv4-only hosts will not be found",
-                    MDNS_IP4_ADDRESS, e);
+    /**
+     * Asynchronously runs the Query until {@link #stop()} is called.
+     *
+     * @param localhost address of the network interface to listen on
+     * @param listener  receives Instance added, removed, and updated events
+     * @throws IOException thrown on socket and network errors
+     */
+    public void startOn(InetAddress localhost, BrowseListener listener) throws IOException {
+        startOn(interfaceFor(localhost), listener);
+    }
+
+    /*
+     * Starting and stopping wait on the ReceiveEngine's thread, which is where BrowseListeners are called from, so
+     * the Query's monitor is only held to swap continuousRun and never while a run starts or stops.
+     */
+    private void startOn(NetworkInterface networkInterface, BrowseListener listener) throws IOException {
+        Run run = new Run(null, listener, new Progress());
+        synchronized (this) {
+            if (isBrowsing()) {
+                throw new IllegalStateException("Query is already running");
+            }
+            continuousRun = run;
+            lastRun = run;
         }
+        logger.debug("Starting continuous query on {}", networkInterface);
         try {
-            socket.joinGroup(mdnsGroupIPv6);
-            isUsingIPv6 = true;
-        } catch (SocketException e) {
-            logger.error("SocketException when joining group for {}, IPv6-only hosts will not be found",
-                    MDNS_IP6_ADDRESS, e);
-        }
-        if (!isUsingIPv4 && !isUsingIPv6) {
-            throw new IOException("No usable network interfaces found");
-        }
-        socket.setTimeToLive(10);
-        socket.setSoTimeout(browsingTimeout);
-    }
-
-    private Thread listenForResponses() {
-        Thread listener = new Thread(this::collectResponses);
-        listener.start();
-        return listener;
-    }
-
-    private Set<Instance> collectResponses() {
-        long startTime = System.currentTimeMillis();
-        long currentTime = startTime;
-        socketLock.lock();
-        listenerStarted = true;
-        listenerFinished = false;
-        socketLock.unlock();
-        for (int timeouts = 0; timeouts == 0 && currentTime - startTime < browsingTimeout; ) {
-            byte[] responseBuffer = new byte[Message.MAX_LENGTH];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            try {
-                logger.debug("Listening for responses...");
-                socket.receive(responsePacket);
-                currentTime = System.currentTimeMillis();
-                //Utils.dumpPacket(responsePacket, "response");
-                logger.debug("Response received!");
-//                logger.debug("Response of length {} at offset {}: {}", responsePacket.getLength(), responsePacket.getOffset(), responsePacket.getData());
-                try {
-                    parseResponsePacket(responsePacket);
-                } catch (IllegalArgumentException e) {
-                    logger.debug("Response was not a mDNS response packet, ignoring it");
-                    timeouts = 0;
-                    continue;
+            run.startContinuous(networkInterface);
+        } catch (IOException e) {
+            synchronized (this) {
+                if (continuousRun == run) {
+                    continuousRun = null;
                 }
-                timeouts = 0;
-            } catch (SocketTimeoutException e) {
-                timeouts++;
-            } catch (IOException e) {
-                logger.error("IOException while listening for mDNS responses: ", e);
             }
+            throw e;
         }
-        socketLock.lock();
-        listenerFinished = true;
-        socketLock.unlock();
-        buildInstancesFromRecords();
-        return instances;
     }
 
-    void parseResponsePacket(DatagramPacket packet) throws IOException {
-        Response response = Response.createFrom(packet);
-        if (response.answers(questions)) {
-            records.addAll(response.getRecords());
-            fetchMissingRecords();
-        } else {
-            // This response isn't related to any of the questions we asked
-            logger.debug("This response doesn't answer any of our questions, ignoring it.");
+    /**
+     * Stop a Query that was started with {@link #start(BrowseListener)}. Once this returns, the listener will not be
+     * called again. This may be called from the listener itself.
+     */
+    public void stop() {
+        Run run;
+        synchronized (this) {
+            run = continuousRun;
+            continuousRun = null;
+        }
+        if (run != null) {
+            logger.debug("Stopping continuous query");
+            run.stop();
         }
     }
 
     /**
-     * Verify that each PTR record has corresponding SRV, TXT, and either A or AAAA records.
-     * Request any that are missing.
+     * Check whether this Query was started and hasn't yet been stopped.
+     *
+     * @return true if the Query is running continuously
      */
-    private void fetchMissingRecords() throws IOException {
-        logger.debug("Records includes:");
-        records.forEach(r -> logger.debug("{}", r));
-        for (PtrRecord ptr : records.stream().filter(r -> r instanceof PtrRecord).map(r -> (PtrRecord) r).collect(Collectors.toList())) {
-            fetchMissingSrvRecordsFor(ptr);
-            fetchMissingTxtRecordsFor(ptr);
+    public boolean isBrowsing() {
+        return continuousRun != null;
+    }
+
+    private enum Lifecycle {
+        STARTING, RUNNING, STOPPED
+    }
+
+    /**
+     * The state of a single run of this Query, from its first question until it returns or is stopped.
+     * <p>
+     * Responses, timers, and retransmissions are handled on the ReceiveEngine's thread. The thread that started the
+     * run only touches this state before the transport is opened and after it has been closed, apart from its
+     * Progress and the fields guarded by the Run's monitor.
+     */
+    private class Run {
+        private final ResponseListener responseListener;
+        private final Question initialQuestion;
+        private final Set<Question> questions;
+        private final Set<String> watchedNames;
+        private final Set<Instance> instances;
+        private final RecordCache records;
+        private final Retransmitter retransmitter;
+        private final Map<String, PtrRecord> unresolvedInstances;
+        private final Set<String> resolvedInstances;
+        private volatile Consumer<Instance> instanceConsumer;
+        private volatile BrowseListener browseListener;
+        private Map<String, Instance> publishedInstances;
+        private volatile MdnsTransport transport;
+        private NetworkInterface networkInterface;
+        private ReceiveEngine engine;
+        private ReceiveEngine.Timer requeryTimer;
+        private long requeryInterval;
+        private final AtomicReference<Lifecycle> lifecycle;
+        private final Progress progress;
+
+        // Guarded by this
+        private final List<Long> latencies;
+        private long initialQuestionSentAt;
+
+        private Run(Consumer<Instance> consumer, BrowseListener listener, Progress progress) {
+            this.responseListener = this::handleResponse;
+            this.initialQuestion = new Question(service, domain);
+            this.questions = ConcurrentHashMap.newKeySet();
+            this.watchedNames = ConcurrentHashMap.newKeySet();
+            this.instances = Collections.synchronizedSet(new HashSet<>());
+            this.records = new RecordCache(new CacheListener());
+            this.retransmitter = new Retransmitter(this::isAnswered, this::resend);
+            this.unresolvedInstances = new HashMap<>();
+            this.resolvedInstances = new HashSet<>();
+            this.instanceConsumer = consumer;
+            this.browseListener = listener;
+            this.publishedInstances = new HashMap<>();
+            this.progress = progress;
+            this.latencies = new ArrayList<>();
+            this.lifecycle = new AtomicReference<>(Lifecycle.STARTING);
         }
-        for (SrvRecord srv : records.stream().filter(r -> r instanceof SrvRecord).map(r -> (SrvRecord) r).collect(Collectors.toList())) {
-            fetchMissingAddressRecordsFor(srv);
+
+        /**
+         * Search the network for the Instances of this Query's Service. When useSharedCache is true, records already
+         * in the shared cache are sent as known answers, and the results are stored back in it.
+         */
+        private void browseOnce(NetworkInterface networkInterface, boolean useSharedCache, StopCondition condition)
+                throws IOException {
+            if (useSharedCache) {
+                List<Record> cached = DiscoveryCache.getShared().getRecords(networkInterface.getName(), service,
+                        domain);
+                records.addAll(cached);
+                watch(cached);
+                resolveInstances(cached, false);
+            }
+            boolean listened = false;
+            try {
+                if (networkInterface != null) {
+                    openTransport(networkInterface);
+                }
+                askInitialQuestion();
+                if (transport != null) {
+                    if (useSharedCache) {
+                        engine.runAndWait(this::refreshExpiringRecords);
+                    }
+                    progress.await(condition);
+                    listened = true;
+                }
+            } finally {
+                closeTransport();
+            }
+            if (listened) {
+                recordLatencies();
+                buildInstancesFromRecords();
+                if (useSharedCache) {
+                    DiscoveryCache.getShared().store(networkInterface.getName(), service, domain, records.getRecords(),
+                            instances);
+                }
+            }
         }
-    }
 
-    private void fetchMissingSrvRecordsFor(PtrRecord ptr) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof SrvRecord).filter(
-                r -> r.getName().equals(ptr.getPtrName())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no SRV records");
-            querySrvRecordFor(ptr);
+        private void startContinuous(NetworkInterface networkInterface) throws IOException {
+            if (networkInterface == null) {
+                askInitialQuestion();
+                lifecycle.compareAndSet(Lifecycle.STARTING, Lifecycle.RUNNING);
+                return;
+            }
+            try {
+                openTransport(networkInterface);
+                askInitialQuestion();
+            } catch (IOException e) {
+                lifecycle.set(Lifecycle.STOPPED);
+                browseListener = null;
+                closeTransport();
+                throw e;
+            }
+            requeryInterval = MIN_REQUERY_INTERVAL;
+            requeryTimer = engine.schedule(this::requery, requeryInterval);
+            if (!lifecycle.compareAndSet(Lifecycle.STARTING, Lifecycle.RUNNING)) {
+                // stop() was called while we were starting, and left closing the transport to us
+                shutDown();
+            }
         }
-    }
 
-    private void fetchMissingTxtRecordsFor(PtrRecord ptr) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof TxtRecord).filter(
-                r -> r.getName().equals(ptr.getPtrName())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no TXT records");
-            queryTxtRecordFor(ptr);
+        /**
+         * Stop a continuous run. If the run is still starting, the thread starting it closes its transport once it's
+         * done.
+         */
+        private void stop() {
+            browseListener = null;
+            if (lifecycle.getAndSet(Lifecycle.STOPPED) == Lifecycle.RUNNING) {
+                shutDown();
+            }
+        }
+
+        private void shutDown() {
+            if (transport != null) {
+                requeryTimer.cancel();
+                closeTransport();
+            }
         }
-    }
 
-    private void fetchMissingAddressRecordsFor(SrvRecord srv) throws IOException {
-        long numRecords = records.stream().filter(r -> r instanceof ARecord || r instanceof AaaaRecord).filter(
-                r -> r.getName().equals(srv.getTarget())
-        ).count();
-        if (numRecords == 0) {
-            logger.debug("Response has no A or AAAA records");
-            queryAddressesFor(srv);
+        /**
+         * Add the latencies this run observed to the distributions adaptive Queries choose their timeouts from.
+         */
+        private void recordLatencies() {
+            List<Long> observed;
+            synchronized (this) {
+                observed = new ArrayList<>(latencies);
+            }
+            LatencyTracker.getShared().record(networkInterface.getName(), service, observed);
+        }
+
+        /**
+         * Send our initial question right away; follow-up questions are batched by {@link #ask(Question)}.
+         */
+        private void askInitialQuestion() throws IOException {
+            questions.add(initialQuestion);
+            if (transport != null) {
+                transport.subscribe(initialQuestion.getQName(), responseListener);
+                for (String name : watchedNames) {
+                    transport.subscribe(name, responseListener);
+                }
+                // Responses may already be updating our records, so read them on the engine's thread
+                List<PtrRecord> answers = new ArrayList<>();
+                engine.runAndWait(() -> answers.addAll(knownAnswers()));
+                synchronized (this) {
+                    initialQuestionSentAt = System.nanoTime();
+                }
+                transport.send(initialQuestion.withUnicastResponse(unicastResponse), answers);
+            }
+        }
+
+        /**
+         * Find the PTR records answering our initial question that are still good for more than half their TTL.
+         * Sending these along with the question lets responders stay quiet (RFC 6762 section 7.1).
+         */
+        private Collection<PtrRecord> knownAnswers() {
+            Map<String, PtrRecord> answers = new HashMap<>();
+            for (Record record : records.getIndex().get(initialQuestion.getQName(), Record.Type.PTR)) {
+                if (initialQuestion.answeredBy(record) && record.getRemainingTTL() * 2 > record.getTTL()) {
+                    PtrRecord ptr = (PtrRecord) record;
+                    PtrRecord previous = answers.get(ptr.getPtrName());
+                    if (previous == null || previous.getRemainingTTL() < ptr.getRemainingTTL()) {
+                        answers.put(ptr.getPtrName(), ptr);
+                    }
+                }
+            }
+            return answers.values();
+        }
+
+        private void ask(Question question) throws IOException {
+            if (questions.contains(question)) {
+                logger.debug("We've already asked {}, we won't ask again", question);
+                return;
+            }
+
+            questions.add(question);
+            if (transport != null) {
+                transport.subscribe(question.getQName(), responseListener);
+                transport.enqueue(question);
+                retransmitter.watch(question);
+            }
+        }
+
+        /**
+         * Check whether our records answer question. Either kind of address record answers a question for the
+         * other.
+         */
+        private boolean isAnswered(Question question) {
+            RecordIndex index = records.getIndex();
+            String name = question.getQName();
+            switch (question.getQType()) {
+                case A:
+                case AAAA:
+                    return index.contains(name, Record.Type.A) || index.contains(name, Record.Type.AAAA);
+                default:
+                    return index.contains(name, Record.Type.fromInt(question.getQType().asUnsignedShort()));
+            }
+        }
+
+        /**
+         * Called on the ReceiveEngine's thread to ask a follow-up question again.
+         */
+        private void resend(Question question) {
+            if (transport != null) {
+                transport.enqueue(question);
+            }
+        }
+
+        /**
+         * Called on the ReceiveEngine's thread to re-ask our question with exponential back-off.
+         */
+        private void requery() {
+            if (browseListener == null) {
+                return;
+            }
+            try {
+                transport.send(initialQuestion, knownAnswers());
+            } catch (IOException e) {
+                logger.error("IOException while re-asking {}: ", initialQuestion, e);
+            }
+            requeryInterval = Math.min(requeryInterval * 2, MAX_REQUERY_INTERVAL);
+            requeryTimer = engine.schedule(this::requery, requeryInterval);
+        }
+
+        private void openTransport(NetworkInterface networkInterface) throws IOException {
+            this.networkInterface = networkInterface;
+            engine = ReceiveEngine.getDefault();
+            transport = MdnsTransport.acquire(networkInterface);
+            engine.runAndWait(() -> {
+                records.attach(engine);
+                retransmitter.attach(engine);
+            });
+        }
+
+        /**
+         * Called on the ReceiveEngine's thread for each response the transport routes to us.
+         */
+        private void handleResponse(Response response) {
+            try {
+                addResponse(response);
+                publishChanges();
+            } catch (IOException e) {
+                logger.error("IOException while handling mDNS response: ", e);
+            }
+        }
+
+        private void parseResponsePacket(DatagramPacket packet) throws IOException {
+            addResponse(Response.createFrom(packet));
+        }
+
+        private void addResponse(Response response) throws IOException {
+            if (response.answers(questions) || mentionsWatchedName(response)) {
+                List<Record> received = relevantRecords(response.getRecordList());
+                boolean newRecords = records.addAll(received);
+                watch(received);
+                retransmitter.cancelAnswered();
+                fetchMissingRecords(received);
+                resolveInstances(received, newRecords);
+            } else {
+                // This response isn't related to any of the questions we asked
+                logger.debug("This response doesn't answer any of our questions, ignoring it.");
+            }
+        }
+
+        private boolean mentionsWatchedName(Response response) {
+            for (Record record : response.getRecordList()) {
+                if (watchedNames.contains(record.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Subscribe to the names of records we've cached. Responders announce changes to these, such as cache-flush
+         * updates and goodbyes, without being asked, so we'd otherwise only see them if we happened to have a
+         * question for that name outstanding.
+         */
+        private void watch(Collection<Record> cached) {
+            for (Record record : cached) {
+                if (watchedNames.add(record.getName()) && transport != null) {
+                    transport.subscribe(record.getName(), responseListener);
+                }
+            }
+        }
+
+        /**
+         * Find the received records our initial question leads to: PTR records answering it, the SRV and TXT records
+         * of the instances they name, and the A and AAAA records of those instances' targets. Responders also send
+         * records for their other services; caching those would have us refresh records nobody asked about.
+         */
+        private List<Record> relevantRecords(List<Record> received) {
+            RecordIndex index = records.getIndex();
+            Set<String> instanceNames = new HashSet<>();
+            for (Record record : index.get(initialQuestion.getQName(), Record.Type.PTR)) {
+                instanceNames.add(((PtrRecord) record).getPtrName());
+            }
+            for (Record record : received) {
+                if (record instanceof PtrRecord && initialQuestion.answeredBy(record)) {
+                    instanceNames.add(((PtrRecord) record).getPtrName());
+                }
+            }
+            Set<String> targets = new HashSet<>();
+            for (Record record : index.get(Record.Type.SRV)) {
+                targets.add(((SrvRecord) record).getTarget());
+            }
+            for (Record record : received) {
+                if (record instanceof SrvRecord && instanceNames.contains(record.getName())) {
+                    targets.add(((SrvRecord) record).getTarget());
+                }
+            }
+            List<Record> relevant = new ArrayList<>();
+            for (Record record : received) {
+                switch (record.getType()) {
+                    case PTR:
+                        if (initialQuestion.answeredBy(record)) {
+                            relevant.add(record);
+                        }
+                        break;
+                    case SRV:
+                    case TXT:
+                        if (instanceNames.contains(record.getName())) {
+                            relevant.add(record);
+                        }
+                        break;
+                    case A:
+                    case AAAA:
+                        if (targets.contains(record.getName())) {
+                            relevant.add(record);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return relevant;
+        }
+
+        /**
+         * Verify that each newly received PTR record has corresponding SRV and TXT records, and that each newly
+         * received SRV record has either A or AAAA records. Request any that are missing.
+         */
+        private void fetchMissingRecords(Collection<Record> received) throws IOException {
+            for (Record record : received) {
+                if (record.isGoodbye()) {
+                    continue;
+                }
+                if (record instanceof PtrRecord) {
+                    fetchMissingSrvRecordsFor((PtrRecord) record);
+                    fetchMissingTxtRecordsFor((PtrRecord) record);
+                } else if (record instanceof SrvRecord) {
+                    fetchMissingAddressRecordsFor((SrvRecord) record);
+                }
+            }
+        }
+
+        private void fetchMissingSrvRecordsFor(PtrRecord ptr) throws IOException {
+            if (!records.getIndex().contains(ptr.getPtrName(), Record.Type.SRV)) {
+                logger.debug("Response has no SRV records");
+                querySrvRecordFor(ptr);
+            }
         }
-    }
 
-    private void querySrvRecordFor(PtrRecord ptr) throws IOException {
-        Question question = new Question(ptr.getPtrName(), Question.QType.SRV, Question.QClass.IN);
-        ask(question);
+        private void fetchMissingTxtRecordsFor(PtrRecord ptr) throws IOException {
+            if (!records.getIndex().contains(ptr.getPtrName(), Record.Type.TXT)) {
+                logger.debug("Response has no TXT records");
+                queryTxtRecordFor(ptr);
+            }
+        }
+
+        private void fetchMissingAddressRecordsFor(SrvRecord srv) throws IOException {
+            RecordIndex index = records.getIndex();
+            String target = srv.getTarget();
+            if (!index.contains(target, Record.Type.A) && !index.contains(target, Record.Type.AAAA)) {
+                logger.debug("Response has no A or AAAA records");
+                queryAddressesFor(srv);
+            }
+        }
+
+        /**
+         * Find the Instances that the records received so far resolve, report them to our Progress, and pass them to
+         * our consumer if we have one. Only the Instances that haven't been resolved yet are rebuilt.
+         */
+        private void resolveInstances(Collection<Record> received, boolean newRecords) {
+            List<Instance> resolved = new ArrayList<>();
+            for (Record record : received) {
+                if (record instanceof PtrRecord && !record.isGoodbye() && initialQuestion.answeredBy(record)) {
+                    PtrRecord ptr = (PtrRecord) record;
+                    if (!resolvedInstances.contains(ptr.getPtrName())) {
+                        unresolvedInstances.putIfAbsent(ptr.getPtrName(), ptr);
+                    }
+                }
+            }
+            Iterator<PtrRecord> iterator = unresolvedInstances.values().iterator();
+            while (iterator.hasNext()) {
+                PtrRecord ptr = iterator.next();
+                try {
+                    Instance instance = Instance.createFromRecords(ptr, records.getIndex());
+                    if (!instance.getAddresses().isEmpty()) {
+                        logger.debug("Resolved {}", instance);
+                        iterator.remove();
+                        resolvedInstances.add(ptr.getPtrName());
+                        resolved.add(instance);
+                    }
+                } catch (IllegalStateException e) {
+                    logger.debug("Not enough records to resolve {} yet", ptr);
+                }
+            }
+            synchronized (this) {
+                if (initialQuestionSentAt != 0 && browseListener == null) {
+                    long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - initialQuestionSentAt);
+                    resolved.forEach(instance -> latencies.add(latency));
+                }
+            }
+            progress.update(resolved, newRecords);
+            Consumer<Instance> consumer = instanceConsumer;
+            if (consumer != null) {
+                resolved.forEach(consumer);
+            }
+        }
+
+        private void querySrvRecordFor(PtrRecord ptr) throws IOException {
+            Question question = new Question(ptr.getPtrName(), Question.QType.SRV, Question.QClass.IN);
+            ask(question);
+        }
+
+        private void queryTxtRecordFor(PtrRecord ptr) throws IOException {
+            Question question = new Question(ptr.getPtrName(), Question.QType.TXT, Question.QClass.IN);
+            ask(question);
+        }
+
+        private void queryAddressesFor(SrvRecord srv) throws IOException {
+            Question question = new Question(srv.getTarget(), Question.QType.A, Question.QClass.IN);
+            ask(question);
+            question = new Question(srv.getTarget(), Question.QType.AAAA, Question.QClass.IN);
+            ask(question);
+        }
+
+        /**
+         * Add an Instance for each answer to our initial question. A run that stopped early may not have received
+         * every instance's SRV record yet; those instances are left out rather than failing the whole run.
+         */
+        private void buildInstancesFromRecords() {
+            for (PtrRecord ptr : answersToInitialQuestion()) {
+                try {
+                    instances.add(Instance.createFromRecords(ptr, records.getIndex()));
+                } catch (IllegalStateException e) {
+                    logger.debug("Not enough records to build an instance for {}", ptr);
+                }
+            }
+        }
+
+        private List<PtrRecord> answersToInitialQuestion() {
+            List<PtrRecord> answers = new ArrayList<>();
+            for (Record record : records.getIndex().get(initialQuestion.getQName(), Record.Type.PTR)) {
+                if (initialQuestion.answeredBy(record)) {
+                    answers.add((PtrRecord) record);
+                }
+            }
+            return answers;
+        }
+
+        /**
+         * Compare the Instances our records describe with the ones we last reported, and tell the BrowseListener
+         * about any differences.
+         */
+        private void publishChanges() {
+            BrowseListener listener = browseListener;
+            if (listener == null) {
+                return;
+            }
+            Map<String, Instance> current = new HashMap<>();
+            for (PtrRecord ptr : answersToInitialQuestion()) {
+                try {
+                    current.put(ptr.getPtrName(), Instance.createFromRecords(ptr, records.getIndex()));
+                } catch (IllegalStateException e) {
+                    logger.debug("Not enough records to build an instance for {} yet", ptr);
+                }
+            }
+            for (Map.Entry<String, Instance> entry : current.entrySet()) {
+                Instance previous = publishedInstances.get(entry.getKey());
+                if (previous == null) {
+                    listener.instanceAdded(entry.getValue());
+                } else if (!previous.equals(entry.getValue())) {
+                    listener.instanceUpdated(entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Instance> entry : publishedInstances.entrySet()) {
+                if (!current.containsKey(entry.getKey())) {
+                    listener.instanceRemoved(entry.getValue());
+                }
+            }
+            publishedInstances = current;
+            instances.clear();
+            instances.addAll(current.values());
+        }
+
+        private void closeTransport() {
+            if (transport != null) {
+                instanceConsumer = null;
+                transport.unsubscribe(responseListener);
+                engine.runAndWait(() -> {
+                    retransmitter.detach();
+                    records.detach();
+                });
+                transport.release();
+                transport = null;
+            }
+        }
+
+        /**
+         * Reacts to the record cache's timers on the ReceiveEngine's thread.
+         */
+        /**
+         * Called on the ReceiveEngine's thread to ask for record again before it expires.
+         */
+        private void refresh(Record record) {
+            if (transport == null || record.getType() == Record.Type.UNSUPPORTED) {
+                return;
+            }
+            Question question = new Question(record.getName(),
+                    Question.QType.fromInt(record.getType().asUnsignedShort()), Question.QClass.IN);
+            transport.subscribe(question.getQName(), responseListener);
+            transport.enqueue(question);
+        }
+
+        /**
+         * Called on the ReceiveEngine's thread to ask again for the SRV, TXT, and address records from the shared
+         * cache that are past half their TTL. Our initial question lists the cached PTR records as known answers, so
+         * responders stay quiet about them; without asking for the rest directly, revalidating the cache would
+         * learn nothing and its entries would never outlive their first records.
+         */
+        private void refreshExpiringRecords() {
+            List<Record> expiring = new ArrayList<>();
+            for (Record record : records.getRecords()) {
+                switch (record.getType()) {
+                    case SRV:
+                    case TXT:
+                    case A:
+                    case AAAA:
+                        if (record.getRemainingTTL() * 2 <= record.getTTL()) {
+                            expiring.add(record);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            expiring.forEach(this::refresh);
+        }
+
+        private class CacheListener implements RecordCache.Listener {
+            @Override
+            public void refreshNeeded(Record record) {
+                refresh(record);
+            }
+
+            @Override
+            public void recordExpired(Record record) {
+                publishChanges();
+            }
+        }
     }
 
-    private void queryTxtRecordFor(PtrRecord ptr) throws IOException {
-        Question question = new Question(ptr.getPtrName(), Question.QType.TXT, Question.QClass.IN);
-        ask(question);
+    /**
+     * Tracks how far one or more Runs have got, so a caller can wait for all of them against one StopCondition.
+     * Runs report to it from the ReceiveEngine's thread.
+     */
+    private static class Progress {
+        private final Set<String> resolvedNames = new HashSet<>();
+        private long lastNewRecordAt = System.nanoTime();
+
+        private synchronized void update(Collection<Instance> resolved, boolean newRecords) {
+            if (newRecords) {
+                lastNewRecordAt = System.nanoTime();
+            }
+            resolved.forEach(instance -> resolvedNames.add(instance.getName()));
+            notifyAll();
+        }
+
+        /**
+         * Block until condition's deadline passes or one of its early-exit conditions is met.
+         */
+        private synchronized void await(StopCondition condition) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(condition.getTimeout());
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    long sinceNewRecord = TimeUnit.NANOSECONDS.toMillis(now - lastNewRecordAt);
+                    if (condition.isMet(resolvedNames, sinceNewRecord)) {
+                        logger.debug("Stopping early, found {}", resolvedNames);
+                        return;
+                    }
+                    if (deadline - now <= 0) {
+                        return;
+                    }
+                    long timeout = Math.min(TimeUnit.NANOSECONDS.toMillis(deadline - now),
+                            condition.untilQuiet(sinceNewRecord));
+                    wait(Math.max(timeout, 1));
+                }
+            } catch (InterruptedException e) {
+                logger.error("InterruptedException while listening for mDNS responses: ", e);
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
-    private void queryAddressesFor(SrvRecord srv) throws IOException {
-        Question question = new Question(srv.getTarget(), Question.QType.A, Question.QClass.IN);
-        ask(question);
-        question = new Question(srv.getTarget(), Question.QType.AAAA, Question.QClass.IN);
-        ask(question);
+    /* Accessors for test suite, which act on the most recent run */
+
+    void parseResponsePacket(DatagramPacket packet) throws IOException {
+        lastRun.parseResponsePacket(packet);
     }
 
     void buildInstancesFromRecords() {
-        records.stream().filter(r -> r instanceof PtrRecord && initialQuestion.answeredBy(r))
-                .map(r -> (PtrRecord) r).forEach(ptr -> instances.add(Instance.createFromRecords(ptr, records)));
+        lastRun.buildInstancesFromRecords();
     }
 
-    private void closeSocket() {
-        if (socket != null) {
-            socket.close();
-            socket = null;
-        }
+    void publishChanges() {
+        lastRun.publishChanges();
     }
 
-    /* Accessors for test suite */
+    Collection<PtrRecord> knownAnswers() {
+        return lastRun.knownAnswers();
+    }
 
     Set<Question> getQuestions() {
-        return Collections.unmodifiableSet(questions);
+        return Collections.unmodifiableSet(lastRun.questions);
     }
 
     Set<Instance> getInstances() {
-        return Collections.unmodifiableSet(instances);
+        return Collections.unmodifiableSet(lastRun.instances);
+    }
+
+    Collection<Record> getRecords() {
+        return lastRun.records.getRecords();
+    }
+
+    Set<String> getWatchedNames() {
+        return Collections.unmodifiableSet(lastRun.watchedNames);
     }
 }
@@ -0,0 +1,309 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Record;
+import net.straylightlabs.hola.net.ReceiveEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The records a Query has received, each kept until its TTL runs out.
+ * <p>
+ * While the cache is attached to a {@link ReceiveEngine}, every record has a timer on the engine's thread. The
+ * timer asks the {@link Listener} to refresh the record at 80%, 85%, 90%, and 95% of its TTL, plus up to 2% of
+ * random variance (RFC 6762 section 5.2), and evicts the record when the TTL is over. While detached, expired
+ * records are only evicted by {@link #evictExpired()}.
+ * <p>
+ * Goodbye records (TTL of zero) evict the records they match right away. A record with the cache-flush bit set
+ * makes older records with the same name, type, and class, but different data, expire one second later, unless
+ * they were themselves received within the last second (RFC 6762 sections 10.1 and 10.2).
+ * <p>
+ * Records are keyed by their name, type, class, and data, so receiving a record again refreshes its TTL rather than
+ * adding a duplicate.
+ * <p>
+ * The cache is not thread-safe; it is used from the engine's thread while a Query runs and from the caller's
+ * thread otherwise.
+ */
+class RecordCache {
+    private final Listener listener;
+    private final Map<Record, Entry> entries;
+    private final RecordIndex index;
+    private ReceiveEngine engine;
+
+    private final static Logger logger = LoggerFactory.getLogger(RecordCache.class);
+
+    /**
+     * Fractions of a record's TTL at which we try to refresh it, followed by the point where it expires
+     */
+    private final static double[] MILESTONES = {0.80, 0.85, 0.90, 0.95, 1.0};
+    private final static double MILESTONE_VARIANCE = 0.02;
+
+    /**
+     * Records flushed by a cache-flush record expire after this long, and records this recent are never flushed
+     */
+    private final static long FLUSH_GRACE = TimeUnit.SECONDS.toNanos(1);
+
+    interface Listener {
+        /**
+         * Called when record is nearing the end of its TTL and should be asked for again.
+         */
+        void refreshNeeded(Record record);
+
+        /**
+         * Called after record has been evicted from the cache.
+         */
+        void recordExpired(Record record);
+    }
+
+    RecordCache(Listener listener) {
+        this.listener = listener;
+        this.entries = new LinkedHashMap<>();
+        this.index = new RecordIndex();
+    }
+
+    /**
+     * Add record to the cache, replacing any equal record already there.
+     *
+     * @return true if the cache changed other than by refreshing the TTL of a record it already had
+     */
+    boolean add(Record record) {
+        if (record.isGoodbye()) {
+            return evictMatching(record);
+        }
+        if (record.isCacheFlush()) {
+            flushOlderThan(record);
+        }
+        Entry previous = entries.remove(record);
+        if (previous != null) {
+            // A retransmission of a record we already have; the new copy's TTL replaces the old one
+            previous.cancel();
+            index.remove(previous.record);
+        }
+        Entry entry = new Entry(record);
+        entries.put(record, entry);
+        index.add(record);
+        if (engine != null) {
+            entry.scheduleNext();
+        }
+        return previous == null;
+    }
+
+    /**
+     * Add each of records to the cache.
+     *
+     * @return true if any of them changed the cache other than by refreshing a TTL
+     */
+    boolean addAll(Collection<Record> records) {
+        boolean changed = false;
+        for (Record record : records) {
+            changed |= add(record);
+        }
+        return changed;
+    }
+
+    /**
+     * Get every record in the cache.
+     *
+     * @return an unmodifiable view of the cached records
+     */
+    Collection<Record> getRecords() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Get the cached records indexed by name and type. The index changes along with the cache, and should not be
+     * modified by callers.
+     */
+    RecordIndex getIndex() {
+        return index;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Start refreshing and expiring records with timers on engine.
+     */
+    void attach(ReceiveEngine engine) {
+        this.engine = engine;
+        evictExpired();
+        entries.values().forEach(Entry::scheduleNext);
+    }
+
+    /**
+     * Cancel every timer; records stay in the cache until the next {@link #attach} or {@link #evictExpired()}.
+     */
+    void detach() {
+        entries.values().forEach(Entry::cancel);
+        engine = null;
+    }
+
+    /**
+     * Remove every record whose TTL has run out.
+     */
+    void evictExpired() {
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expiresAt() - now <= 0) {
+                entry.cancel();
+                iterator.remove();
+                index.remove(entry.record);
+                listener.recordExpired(entry.record);
+            }
+        }
+    }
+
+    private boolean evictMatching(Record goodbye) {
+        List<Record> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.record.matches(goodbye)) {
+                entry.cancel();
+                iterator.remove();
+                index.remove(entry.record);
+                evicted.add(entry.record);
+            }
+        }
+        for (Record record : evicted) {
+            logger.debug("Evicting {} after receiving a goodbye", record);
+            listener.recordExpired(record);
+        }
+        return !evicted.isEmpty();
+    }
+
+    private void flushOlderThan(Record flush) {
+        long receivedBefore = flush.getReceivedAt() - FLUSH_GRACE;
+        for (Entry entry : entries.values()) {
+            Record record = entry.record;
+            if (record.getType() == flush.getType() && record.getName().equals(flush.getName()) &&
+                    !record.matches(flush) && record.getReceivedAt() - receivedBefore < 0) {
+                logger.debug("Flushing {} in favor of {}", record, flush);
+                entry.expireAt(flush.getReceivedAt() + FLUSH_GRACE);
+            }
+        }
+    }
+
+    void clear() {
+        entries.values().forEach(Entry::cancel);
+        entries.clear();
+        index.clear();
+    }
+
+    private class Entry {
+        private final Record record;
+        private int milestone;
+        private ReceiveEngine.Timer timer;
+        private boolean flushed;
+        private long flushedExpiry;
+
+        private Entry(Record record) {
+            this.record = record;
+        }
+
+        private long expiresAt() {
+            if (flushed) {
+                return flushedExpiry;
+            }
+            return record.getReceivedAt() + TimeUnit.SECONDS.toNanos(record.getTTL());
+        }
+
+        /**
+         * Shorten this entry's lifetime; it won't be refreshed again.
+         */
+        private void expireAt(long expiry) {
+            if (flushed && flushedExpiry - expiry <= 0) {
+                return;
+            }
+            flushed = true;
+            flushedExpiry = expiry;
+            milestone = MILESTONES.length - 1;
+            cancel();
+            if (engine != null) {
+                scheduleNext();
+            }
+        }
+
+        /**
+         * Find the next milestone that hasn't passed yet and set a timer for it.
+         */
+        private void scheduleNext() {
+            long now = System.nanoTime();
+            long ttl = TimeUnit.SECONDS.toNanos(record.getTTL());
+            while (milestone < MILESTONES.length) {
+                double fraction = MILESTONES[milestone];
+                if (milestone < MILESTONES.length - 1) {
+                    fraction += ThreadLocalRandom.current().nextDouble(MILESTONE_VARIANCE);
+                }
+                long due;
+                if (milestone == MILESTONES.length - 1) {
+                    due = expiresAt();
+                } else {
+                    due = record.getReceivedAt() + (long) (ttl * fraction);
+                }
+                if (due - now > 0 || milestone == MILESTONES.length - 1) {
+                    long delay = TimeUnit.NANOSECONDS.toMillis(Math.max(due - now, 0));
+                    timer = engine.schedule(this::milestoneReached, delay);
+                    return;
+                }
+                milestone++;
+            }
+        }
+
+        private void milestoneReached() {
+            if (entries.get(record) != this) {
+                return;
+            }
+            if (milestone < MILESTONES.length - 1) {
+                logger.debug("Refreshing {} at {}% of its TTL", record, (int) (MILESTONES[milestone] * 100));
+                milestone++;
+                listener.refreshNeeded(record);
+                scheduleNext();
+            } else {
+                logger.debug("Evicting expired record {}", record);
+                entries.remove(record);
+                index.remove(record);
+                listener.recordExpired(record);
+            }
+        }
+
+        private void cancel() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+}
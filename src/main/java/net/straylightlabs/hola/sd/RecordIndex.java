@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Record;
+
+import java.util.*;
+
+/**
+ * Records indexed by name and type, so finding the SRV record for a PTR, or the addresses for an SRV, doesn't mean
+ * scanning every record we've received.
+ * <p>
+ * This class is not thread-safe.
+ */
+class RecordIndex {
+    private final Map<Key, Set<Record>> byNameAndType;
+    private final Map<Record.Type, Set<Record>> byType;
+
+    RecordIndex() {
+        byNameAndType = new HashMap<>();
+        byType = new EnumMap<>(Record.Type.class);
+    }
+
+    RecordIndex(Collection<Record> records) {
+        this();
+        records.forEach(this::add);
+    }
+
+    void add(Record record) {
+        byNameAndType.computeIfAbsent(new Key(record.getName(), record.getType()), k -> new LinkedHashSet<>())
+                .add(record);
+        byType.computeIfAbsent(record.getType(), k -> new LinkedHashSet<>()).add(record);
+    }
+
+    void remove(Record record) {
+        Key key = new Key(record.getName(), record.getType());
+        Set<Record> named = byNameAndType.get(key);
+        if (named != null && named.remove(record) && named.isEmpty()) {
+            byNameAndType.remove(key);
+        }
+        Set<Record> typed = byType.get(record.getType());
+        if (typed != null && typed.remove(record) && typed.isEmpty()) {
+            byType.remove(record.getType());
+        }
+    }
+
+    void clear() {
+        byNameAndType.clear();
+        byType.clear();
+    }
+
+    /**
+     * Get the records with the given name and type.
+     *
+     * @return an unmodifiable view of the matching records, which may be empty
+     */
+    Set<Record> get(String name, Record.Type type) {
+        Set<Record> records = byNameAndType.get(new Key(name, type));
+        return records != null ? Collections.unmodifiableSet(records) : Collections.emptySet();
+    }
+
+    /**
+     * Get every record of the given type.
+     *
+     * @return an unmodifiable view of the matching records, which may be empty
+     */
+    Set<Record> get(Record.Type type) {
+        Set<Record> records = byType.get(type);
+        return records != null ? Collections.unmodifiableSet(records) : Collections.emptySet();
+    }
+
+    boolean contains(String name, Record.Type type) {
+        return byNameAndType.containsKey(new Key(name, type));
+    }
+
+    private static class Key {
+        private final String name;
+        private final Record.Type type;
+
+        private Key(String name, Record.Type type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return type == key.type && name.equals(key.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + type.hashCode();
+        }
+    }
+}
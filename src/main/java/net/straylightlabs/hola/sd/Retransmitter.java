@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Question;
+import net.straylightlabs.hola.net.ReceiveEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Re-asks follow-up questions that haven't been answered, so a single lost packet doesn't leave an Instance
+ * unresolved.
+ * <p>
+ * Each watched question is re-asked one second after it was first asked, then after intervals that double each time
+ * (RFC 6762 section 5.2), until it is answered or the Retransmitter is detached from its {@link ReceiveEngine}.
+ * <p>
+ * The Retransmitter is not thread-safe; it is only used from the engine's thread while attached.
+ */
+class Retransmitter {
+    private final Predicate<Question> answered;
+    private final Consumer<Question> resend;
+    private final Map<Question, Pending> pending;
+    private final long initialInterval;
+    private ReceiveEngine engine;
+
+    private final static Logger logger = LoggerFactory.getLogger(Retransmitter.class);
+
+    /**
+     * An unanswered question is first re-asked after this many milliseconds
+     */
+    private final static long INITIAL_INTERVAL = 1000;
+
+    /**
+     * The interval stops doubling once it reaches one hour
+     */
+    private final static long MAX_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * @param answered tells whether the records we hold answer a question
+     * @param resend   asks a question again
+     */
+    Retransmitter(Predicate<Question> answered, Consumer<Question> resend) {
+        this(answered, resend, INITIAL_INTERVAL);
+    }
+
+    Retransmitter(Predicate<Question> answered, Consumer<Question> resend, long initialInterval) {
+        this.answered = answered;
+        this.resend = resend;
+        this.pending = new HashMap<>();
+        this.initialInterval = initialInterval;
+    }
+
+    void attach(ReceiveEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Stop re-asking every question.
+     */
+    void detach() {
+        pending.values().forEach(Pending::cancel);
+        pending.clear();
+        engine = null;
+    }
+
+    /**
+     * Re-ask question with exponential back-off until it's answered. Does nothing while detached.
+     */
+    void watch(Question question) {
+        if (engine == null || pending.containsKey(question)) {
+            return;
+        }
+        Pending retransmission = new Pending(question);
+        pending.put(question, retransmission);
+        retransmission.schedule();
+    }
+
+    /**
+     * Stop re-asking the questions that have been answered.
+     */
+    void cancelAnswered() {
+        Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Pending retransmission = iterator.next();
+            if (answered.test(retransmission.question)) {
+                retransmission.cancel();
+                iterator.remove();
+            }
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    private class Pending {
+        private final Question question;
+        private long interval;
+        private ReceiveEngine.Timer timer;
+
+        private Pending(Question question) {
+            this.question = question;
+            this.interval = initialInterval;
+        }
+
+        private void schedule() {
+            timer = engine.schedule(this::retransmit, interval);
+        }
+
+        private void retransmit() {
+            if (pending.get(question) != this) {
+                return;
+            }
+            if (answered.test(question)) {
+                pending.remove(question);
+                return;
+            }
+            logger.debug("No answer to {} after {} ms, asking again", question, interval);
+            resend.accept(question);
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+            schedule();
+        }
+
+        private void cancel() {
+            if (timer != null) {
+                timer.cancel();
+                timer = null;
+            }
+        }
+    }
+}
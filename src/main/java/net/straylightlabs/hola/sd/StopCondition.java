@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import java.util.Set;
+
+/**
+ * Decides when {@link Query#runOnce(StopCondition)} stops listening for responses.
+ * <p>
+ * Every StopCondition has a hard deadline, after which the Query returns whatever it has found. It can also stop
+ * early once a number of Instances have been resolved, once an Instance with a particular name has been resolved, or
+ * once no new records have arrived for a while. StopConditions are immutable; each method returns a new one.
+ */
+public final class StopCondition {
+    private final long timeout;
+    private final int expectedInstances;
+    private final String instanceName;
+    private final long quietPeriod;
+
+    /**
+     * Create a StopCondition with a hard deadline and no early-exit conditions.
+     *
+     * @param timeout time in MS to wait for responses
+     * @return a new StopCondition
+     */
+    public static StopCondition after(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("A StopCondition's timeout can't be negative");
+        }
+        return new StopCondition(timeout, 0, null, 0);
+    }
+
+    private StopCondition(long timeout, int expectedInstances, String instanceName, long quietPeriod) {
+        this.timeout = timeout;
+        this.expectedInstances = expectedInstances;
+        this.instanceName = instanceName;
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Also stop once count Instances have been resolved.
+     *
+     * @param count number of Instances to wait for
+     * @return a new StopCondition
+     */
+    public StopCondition whenFound(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("A StopCondition must wait for at least one instance");
+        }
+        return new StopCondition(timeout, count, instanceName, quietPeriod);
+    }
+
+    /**
+     * Also stop once an Instance with the given user-visible name has been resolved.
+     *
+     * @param name the name to wait for, as returned by {@link Instance#getName()}
+     * @return a new StopCondition
+     */
+    public StopCondition whenFound(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("A StopCondition can't wait for a null name");
+        }
+        return new StopCondition(timeout, expectedInstances, name, quietPeriod);
+    }
+
+    /**
+     * Also stop once no new records have arrived for period milliseconds. The period is counted from the start of
+     * the run until the first record arrives.
+     *
+     * @param period time in MS without new records
+     * @return a new StopCondition
+     */
+    public StopCondition whenQuietFor(long period) {
+        if (period < 1) {
+            throw new IllegalArgumentException("A StopCondition's quiet period must be positive");
+        }
+        return new StopCondition(timeout, expectedInstances, instanceName, period);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Check whether any early-exit condition is met.
+     *
+     * @param resolvedNames  the names of the Instances resolved so far
+     * @param sinceNewRecord time in MS since the last new record arrived, or since the run started
+     */
+    boolean isMet(Set<String> resolvedNames, long sinceNewRecord) {
+        return (expectedInstances > 0 && resolvedNames.size() >= expectedInstances) ||
+                (instanceName != null && resolvedNames.contains(instanceName)) ||
+                (quietPeriod > 0 && sinceNewRecord >= quietPeriod);
+    }
+
+    /**
+     * Check whether an answer found without waiting, such as one from the shared cache, is enough to stop on. A
+     * condition without early-exit conditions for particular Instances accepts any answer; otherwise the answer must
+     * meet them.
+     */
+    boolean isMetBy(Set<String> resolvedNames) {
+        if (expectedInstances <= 0 && instanceName == null) {
+            return true;
+        }
+        return (expectedInstances > 0 && resolvedNames.size() >= expectedInstances) ||
+                (instanceName != null && resolvedNames.contains(instanceName));
+    }
+
+    /**
+     * Get the time in MS until the quiet period will have passed, if no new records arrive first.
+     *
+     * @return time in MS, or Long.MAX_VALUE if this StopCondition has no quiet period
+     */
+    long untilQuiet(long sinceNewRecord) {
+        return quietPeriod > 0 ? Math.max(quietPeriod - sinceNewRecord, 0) : Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "StopCondition{" +
+                "timeout=" + timeout +
+                ", expectedInstances=" + expectedInstances +
+                ", instanceName='" + instanceName + '\'' +
+                ", quietPeriod=" + quietPeriod +
+                '}';
+    }
+}
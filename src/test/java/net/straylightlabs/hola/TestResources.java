@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.straylightlabs.hola;
+
+import net.straylightlabs.hola.dns.Record;
+import net.straylightlabs.hola.dns.Response;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads the recorded mDNS packets under src/test/resources.
+ */
+public final class TestResources {
+    private TestResources() {
+    }
+
+    public static byte[] loadBytes(String resourceName) throws IOException {
+        URL resourceURL = TestResources.class.getClassLoader().getResource(resourceName);
+        if (resourceURL == null) {
+            throw new FileNotFoundException(resourceName);
+        }
+        try {
+            return Files.readAllBytes(Paths.get(resourceURL.toURI()));
+        } catch (URISyntaxException e) {
+            throw new IOException("Can't read " + resourceName, e);
+        }
+    }
+
+    public static ByteBuffer loadBuffer(String resourceName) throws IOException {
+        return ByteBuffer.wrap(loadBytes(resourceName));
+    }
+
+    public static DatagramPacket loadPacket(String resourceName) throws IOException {
+        byte[] bytes = loadBytes(resourceName);
+        return new DatagramPacket(bytes, bytes.length);
+    }
+
+    /**
+     * Parse each of the named packets and collect their records.
+     */
+    public static List<Record> loadRecords(String... resourceNames) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (String resourceName : resourceNames) {
+            records.addAll(Response.createFrom(loadPacket(resourceName)).getRecordList());
+        }
+        return records;
+    }
+}
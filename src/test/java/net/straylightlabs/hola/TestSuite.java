@@ -27,15 +27,33 @@
 package net.straylightlabs.hola;
 
 import net.straylightlabs.hola.dns.*;
+import net.straylightlabs.hola.net.BufferPoolTest;
+import net.straylightlabs.hola.net.DuplicateFilterTest;
+import net.straylightlabs.hola.net.InterfaceSelectorTest;
+import net.straylightlabs.hola.net.MdnsTransportTest;
+import net.straylightlabs.hola.net.ReceiveEngineTest;
+import net.straylightlabs.hola.net.SourceFilterTest;
+import net.straylightlabs.hola.net.TransportPoolTest;
+import net.straylightlabs.hola.sd.BrowseResultTest;
+import net.straylightlabs.hola.sd.DiscoveryCacheTest;
 import net.straylightlabs.hola.sd.InstanceTest;
+import net.straylightlabs.hola.sd.LatencyTrackerTest;
 import net.straylightlabs.hola.sd.QueryTest;
+import net.straylightlabs.hola.sd.RecordCacheTest;
+import net.straylightlabs.hola.sd.RecordIndexTest;
+import net.straylightlabs.hola.sd.RetransmitterTest;
 import net.straylightlabs.hola.sd.ServiceTest;
+import net.straylightlabs.hola.sd.StopConditionTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ARecordTest.class, AaaaRecordTest.class, DomainTest.class, InstanceTest.class,
-        PtrRecordTest.class, QuestionTest.class, RecordTest.class, ResponseTest.class, ServiceTest.class,
-        SrvRecordTest.class, TxtRecordTest.class, QueryTest.class})
+@Suite.SuiteClasses({ARecordTest.class, AaaaRecordTest.class, BrowseResultTest.class, BufferPoolTest.class,
+        DiscoveryCacheTest.class, DomainTest.class, DuplicateFilterTest.class, InstanceTest.class,
+        InterfaceSelectorTest.class, LatencyTrackerTest.class, MdnsTransportTest.class, PacketWriterTest.class,
+        PtrRecordTest.class, QuestionTest.class, ReceiveEngineTest.class, RecordCacheTest.class, RecordIndexTest.class,
+        RecordTest.class, ResponseFilterTest.class, ResponseTest.class, RetransmitterTest.class, ServiceTest.class,
+        SourceFilterTest.class, SrvRecordTest.class, StopConditionTest.class, TransportPoolTest.class,
+        TxtRecordTest.class, QueryTest.class})
 public class TestSuite {
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.dns;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketWriterTest {
+    @Test
+    public void testMultipleQuestions() {
+        Question srv = new Question("Zelda._http._tcp.local.", Question.QType.SRV, Question.QClass.IN);
+        Question txt = new Question("Zelda._http._tcp.local.", Question.QType.TXT, Question.QClass.IN);
+        Question a = new Question("zelda.local.", Question.QType.A, Question.QClass.IN);
+        PacketWriter writer = new PacketWriter(Message.MAX_LENGTH);
+        assertTrue(writer.addQuestion(srv));
+        assertTrue(writer.addQuestion(txt));
+        assertTrue(writer.addQuestion(a));
+        ByteBuffer packet = writer.finish();
+
+        assertTrue("QDCOUNT = 3", packet.getShort(4) == 3);
+        int uncompressed = 12 + (24 + 4) * 2 + (13 + 4);
+        assertTrue("Names are compressed: " + packet.limit(), packet.limit() < uncompressed);
+
+        packet.position(12);
+        assertTrue(Question.fromBuffer(packet).equals(srv));
+        assertTrue(Question.fromBuffer(packet).equals(txt));
+        assertTrue(Question.fromBuffer(packet).equals(a));
+        assertFalse("No trailing bytes", packet.hasRemaining());
+    }
+
+    @Test
+    public void testPacketLengthIsBounded() {
+        PacketWriter writer = new PacketWriter(40);
+        assertTrue(writer.addQuestion(new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN)));
+        assertFalse(writer.addQuestion(new Question("_ipp._tcp.local.", Question.QType.PTR, Question.QClass.IN)));
+        assertTrue(writer.getQuestionCount() == 1);
+        assertTrue(writer.finish().limit() <= 40);
+
+        writer.reset();
+        assertTrue(writer.addQuestion(new Question("_ipp._tcp.local.", Question.QType.PTR, Question.QClass.IN)));
+    }
+
+    @Test
+    public void testKnownAnswers() {
+        Question question = new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        PtrRecord known = buildPtrRecord("_http._tcp.local.", "Zelda._http._tcp.local.", 4500);
+        PacketWriter writer = new PacketWriter(Message.MAX_LENGTH);
+        assertTrue(writer.addQuestion(question));
+        assertTrue(writer.addKnownAnswer(known));
+        ByteBuffer packet = writer.finish();
+
+        assertTrue("QDCOUNT = 1", packet.getShort(4) == 1);
+        assertTrue("ANCOUNT = 1", packet.getShort(6) == 1);
+        assertTrue("TC bit is clear", (packet.getShort(2) & 0x0200) == 0);
+        packet.position(12);
+        assertTrue(Question.fromBuffer(packet).equals(question));
+        Record record = Record.fromBuffer(packet);
+        assertTrue("Known answer is a PTR record", record instanceof PtrRecord);
+        assertTrue("Owner name matches", record.getName().equals("_http._tcp.local."));
+        assertTrue("PTR name matches", ((PtrRecord) record).getPtrName().equals("Zelda._http._tcp.local."));
+        assertTrue("TTL is the remaining TTL", record.getTTL() <= 4500 && record.getTTL() > 4490);
+        assertFalse("No trailing bytes", packet.hasRemaining());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testQuestionsPrecedeKnownAnswers() {
+        PacketWriter writer = new PacketWriter(Message.MAX_LENGTH);
+        writer.addKnownAnswer(buildPtrRecord("_http._tcp.local.", "Zelda._http._tcp.local.", 4500));
+        writer.addQuestion(new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN));
+    }
+
+    private static PtrRecord buildPtrRecord(String name, String ptrName, int ttl) {
+        ByteBuffer buffer = ByteBuffer.allocate(500);
+        RecordTest.addNameToBuffer(name, buffer);
+        buffer.putShort((short) Record.Type.PTR.asUnsignedShort());
+        buffer.putShort((short) Record.Class.IN.asUnsignedShort());
+        buffer.putInt(ttl);
+        int rdLengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        RecordTest.addNameToBuffer(ptrName, buffer);
+        buffer.putShort(rdLengthPosition, (short) (buffer.position() - rdLengthPosition - 2));
+        buffer.flip();
+        return (PtrRecord) Record.fromBuffer(buffer);
+    }
+}
@@ -59,6 +59,56 @@ public class QuestionTest {
         assertTrue("QClass = IN", question.getQClass() == Question.QClass.IN);
     }
 
+    @Test
+    public void testEncodedLength() {
+        Question question = new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        byte[] bytes = question.getWireBytes();
+        // 12 byte header, 18 byte name, 2 byte QTYPE, 2 byte QCLASS
+        assertTrue("length = 34: " + bytes.length, bytes.length == 34);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertTrue("QDCOUNT = 1", buffer.getShort(4) == 1);
+        buffer.position(12);
+        Question parsed = Question.fromBuffer(buffer);
+        assertTrue("Encoded question round-trips", parsed.equals(question));
+        assertTrue("No trailing bytes", !buffer.hasRemaining());
+    }
+
+    @Test
+    public void testEncodingIsCached() {
+        Service service = Service.fromName("_http._tcp");
+        Question first = new Question(service, Domain.LOCAL);
+        Question second = new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        Question other = new Question("_http._tcp.local.", Question.QType.SRV, Question.QClass.IN);
+        assertTrue("Equal questions share encoded bytes", first.getWireBytes() == second.getWireBytes());
+        assertTrue("Different questions don't share encoded bytes", first.getWireBytes() != other.getWireBytes());
+    }
+
+    @Test
+    public void testPacketIsReadOnlyView() {
+        Question question = new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        ByteBuffer packet = question.toPacket();
+        assertTrue("Packet is read-only", packet.isReadOnly());
+        assertTrue("Packet holds the whole encoding", packet.remaining() == question.getWireBytes().length);
+        packet.position(packet.limit());
+        assertTrue("Each packet has its own position", question.toPacket().remaining() > 0);
+    }
+
+    @Test
+    public void testUnicastResponseBit() {
+        Question multicast = new Question("_http._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        Question unicast = multicast.withUnicastResponse(true);
+        assertTrue("QU question equals QM question", unicast.equals(multicast));
+        assertTrue("QU question has its own encoding", unicast.getWireBytes() != multicast.getWireBytes());
+        assertTrue("QM question has no QU bit", multicast.getWireBytes()[32] == 0x00);
+        assertTrue("QU question has QU bit", unicast.getWireBytes()[32] == (byte) 0x80);
+
+        ByteBuffer buffer = ByteBuffer.wrap(unicast.getWireBytes());
+        buffer.position(12);
+        Question parsed = Question.fromBuffer(buffer);
+        assertTrue("Parsed QU bit", parsed.isUnicastResponse());
+        assertTrue("QClass = IN", parsed.getQClass() == Question.QClass.IN);
+    }
+
     @Test
     public void testToStringForExceptions() {
         Service service = Service.fromName("_http._tcp");
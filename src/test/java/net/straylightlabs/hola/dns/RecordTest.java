@@ -30,6 +30,7 @@ import org.junit.Test;
 
 import java.nio.ByteBuffer;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class RecordTest {
@@ -73,6 +74,45 @@ public class RecordTest {
         assertTrue("TTL == 3600", record.getTTL() == 3600);
     }
 
+    @Test
+    public void testRemainingTTL() {
+        ByteBuffer buffer = createBufferForNames("_http._tcp.local.");
+        buffer.putShort((short) Record.Type.PTR.asUnsignedShort());
+        buffer.putShort((short) Record.Class.IN.asUnsignedShort());
+        buffer.putInt(3600);
+        buffer.putShort((short) 0);
+        buffer.rewind();
+
+        Record record = Record.fromBuffer(buffer);
+        assertTrue("Remaining TTL <= TTL", record.getRemainingTTL() <= 3600);
+        assertTrue("Remaining TTL counts down from TTL", record.getRemainingTTL() >= 3599);
+    }
+
+    @Test
+    public void testEqualityIgnoresTTL() {
+        Record record = buildPtrRecord("Zelda._http._tcp.local.", 3600);
+        Record repeat = buildPtrRecord("Zelda._http._tcp.local.", 120);
+        Record other = buildPtrRecord("Link._http._tcp.local.", 3600);
+
+        assertTrue("Repeated record is equal", record.equals(repeat));
+        assertTrue("Repeated record has the same hash code", record.hashCode() == repeat.hashCode());
+        assertFalse("Different data is not equal", record.equals(other));
+    }
+
+    private static Record buildPtrRecord(String ptrName, int ttl) {
+        ByteBuffer buffer = ByteBuffer.allocate(500);
+        addNameToBuffer("_http._tcp.local.", buffer);
+        buffer.putShort((short) Record.Type.PTR.asUnsignedShort());
+        buffer.putShort((short) Record.Class.IN.asUnsignedShort());
+        buffer.putInt(ttl);
+        int rdLengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        addNameToBuffer(ptrName, buffer);
+        buffer.putShort(rdLengthPosition, (short) (buffer.position() - rdLengthPosition - 2));
+        buffer.flip();
+        return Record.fromBuffer(buffer);
+    }
+
     public static ByteBuffer createBufferForNames(String... names) {
         ByteBuffer buffer = ByteBuffer.allocate(9000);
         for (String name : names) {
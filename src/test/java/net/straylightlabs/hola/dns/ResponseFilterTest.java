@@ -0,0 +1,91 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.dns;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static net.straylightlabs.hola.TestResources.loadBuffer;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseFilterTest {
+    private static final String[] RESOURCES = {"response-mdns-appletv-1", "response-mdns-appletv-2",
+            "response-mdns-tivo"};
+
+    @Test
+    public void testEveryRecordNameMatches() throws IOException {
+        for (String resource : RESOURCES) {
+            ByteBuffer packet = loadBuffer(resource);
+            Response response = Response.createFrom(packet);
+            for (Record record : response.getRecordList()) {
+                ResponseFilter filter = ResponseFilter.forNames(Collections.singleton(record.getName()));
+                assertTrue(record.getName() + " matches in " + resource, filter.mightMatch(packet));
+                assertTrue("Position unchanged", packet.position() == 0);
+            }
+        }
+    }
+
+    @Test
+    public void testOtherNamesDontMatch() throws IOException {
+        ResponseFilter filter = ResponseFilter.forNames(Arrays.asList("_ipp._tcp.local.", "printer.local."));
+        for (String resource : RESOURCES) {
+            assertFalse(resource + " doesn't match", filter.mightMatch(loadBuffer(resource)));
+        }
+        ResponseFilter empty = ResponseFilter.forNames(Collections.emptySet());
+        assertFalse("Empty filter matches nothing", empty.mightMatch(loadBuffer(RESOURCES[0])));
+    }
+
+    @Test
+    public void testQueriesAreRejected() {
+        Question question = new Question("_airport._tcp.local.", Question.QType.PTR, Question.QClass.IN);
+        ResponseFilter filter = ResponseFilter.forNames(Collections.singleton(question.getQName()));
+        assertFalse("Query packet rejected", filter.mightMatch(question.toPacket()));
+    }
+
+    @Test
+    public void testMalformedPacketsAreRejected() throws IOException {
+        ByteBuffer packet = loadBuffer(RESOURCES[0]);
+        Response response = Response.createFrom(packet);
+        String lastName = response.getRecordList().get(response.getRecordList().size() - 1).getName();
+        ResponseFilter filter = ResponseFilter.forNames(Collections.singleton(lastName));
+
+        ByteBuffer truncated = packet.duplicate();
+        truncated.limit(packet.limit() / 2);
+        filter.mightMatch(truncated); // Must not throw
+        truncated.limit(8);
+        assertFalse("Header-only packet rejected", filter.mightMatch(truncated));
+
+        ByteBuffer looping = ByteBuffer.wrap(new byte[]{0, 0, (byte) 0x84, 0, 0, 0, 0, 1, 0, 0, 0, 0,
+                (byte) 0xC0, 12, 0, 12, 0, 1, 0, 0, 0, 120, 0, 0});
+        assertFalse("Looping name rejected", filter.mightMatch(looping));
+    }
+}
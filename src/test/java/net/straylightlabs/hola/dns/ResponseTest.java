@@ -53,7 +53,35 @@ public class ResponseTest {
         assertTrue("toString() is not empty", string.length() > 0);
     }
 
+    @Test
+    public void testParseFromBufferSlice() {
+        ByteBuffer packet = buildPacket();
+        ByteBuffer buffer = ByteBuffer.allocate(packet.limit() + 16);
+        buffer.position(16);
+        buffer.put(packet);
+        buffer.flip();
+        buffer.position(16);
+
+        Response response = Response.createFrom(buffer);
+        assertTrue("User visible name = Zelda: " + response.getUserVisibleName(), response.getUserVisibleName().equals("Zelda"));
+        assertTrue("One record", response.getRecordList().size() == 1);
+        assertTrue("Buffer position is unchanged", buffer.position() == 16);
+        assertTrue("Buffer limit is unchanged", buffer.limit() == packet.limit() + 16);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testRecordListIsUnmodifiable() {
+        Response response = buildResponse();
+        response.getRecordList().clear();
+    }
+
     public static Response buildResponse() {
+        ByteBuffer buffer = buildPacket();
+        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.limit());
+        return Response.createFrom(packet);
+    }
+
+    private static ByteBuffer buildPacket() {
         ByteBuffer buffer = ByteBuffer.allocate(9000);
         buffer.putShort((short) 0);
         buffer.putShort((short) 0x8400); // Response bit + Authoritative answer
@@ -69,8 +97,6 @@ public class ResponseTest {
         buffer.putShort((short) 0xC00C);
         buffer.limit(buffer.position());
         buffer.rewind();
-
-        DatagramPacket packet = new DatagramPacket(buffer.array(), buffer.limit());
-        return Response.createFrom(packet);
+        return buffer;
     }
 }
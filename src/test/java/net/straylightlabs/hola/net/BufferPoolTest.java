@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+    @Test
+    public void testLeaseReusesReleasedBuffers() {
+        BufferPool pool = new BufferPool(512, 2, false);
+        ByteBuffer first = pool.lease();
+        first.put((byte) 1);
+        pool.release(first);
+        ByteBuffer second = pool.lease();
+        assertTrue("Released buffer is reused", second == first);
+        assertTrue("Reused buffer is cleared", second.position() == 0 && second.limit() == 512);
+        assertTrue("Only one buffer allocated", pool.getAllocationCount() == 1);
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        BufferPool pool = new BufferPool(512, 2, true);
+        ByteBuffer a = pool.lease();
+        ByteBuffer b = pool.lease();
+        ByteBuffer c = pool.lease();
+        assertTrue("Direct buffers", a.isDirect());
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertTrue("Pool keeps at most 2 idle buffers", pool.getIdleCount() == 2);
+        assertTrue("Three buffers allocated", pool.getAllocationCount() == 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignBuffer() {
+        BufferPool pool = new BufferPool(512, 2, false);
+        pool.release(ByteBuffer.allocate(100));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+    @Test
+    public void testIdenticalPayloadIsSuppressed() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 8);
+        assertFalse("First copy passes", filter.isDuplicate(packet(1, 2, 3)));
+        ByteBuffer copy = packet(1, 2, 3);
+        assertTrue("Second copy suppressed", filter.isDuplicate(copy));
+        assertTrue("Position unchanged", copy.position() == 0);
+        assertFalse("Different payload passes", filter.isDuplicate(packet(1, 2, 4)));
+        assertFalse("Prefix passes", filter.isDuplicate(packet(1, 2)));
+        assertTrue("Suppressed count", filter.getSuppressedCount() == 1);
+    }
+
+    @Test
+    public void testOnlyRemainingBytesAreCompared() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 8);
+        ByteBuffer larger = ByteBuffer.allocate(16);
+        larger.put(new byte[]{9, 9, 1, 2, 3});
+        larger.flip();
+        larger.position(2);
+        assertFalse("First copy passes", filter.isDuplicate(larger));
+        assertTrue("Same remaining bytes suppressed", filter.isDuplicate(packet(1, 2, 3)));
+    }
+
+    @Test
+    public void testPayloadIsForgottenAfterWindow() throws InterruptedException {
+        DuplicateFilter filter = new DuplicateFilter(50, 8);
+        assertFalse("First copy passes", filter.isDuplicate(packet(1, 2, 3)));
+        Thread.sleep(100);
+        assertFalse("Copy after the window passes", filter.isDuplicate(packet(1, 2, 3)));
+    }
+
+    @Test
+    public void testOldestPayloadIsForgottenWhenFull() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 2);
+        filter.isDuplicate(packet(1));
+        filter.isDuplicate(packet(2));
+        filter.isDuplicate(packet(3));
+        assertFalse("Oldest payload forgotten", filter.isDuplicate(packet(1)));
+        assertTrue("Newest payload remembered", filter.isDuplicate(packet(3)));
+    }
+
+    @Test
+    public void testClear() {
+        DuplicateFilter filter = new DuplicateFilter(60000, 8);
+        filter.isDuplicate(packet(1, 2, 3));
+        filter.clear();
+        assertFalse("Copy after clear passes", filter.isDuplicate(packet(1, 2, 3)));
+    }
+
+    private static ByteBuffer packet(int... bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.sd.Query;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InterfaceSelectorTest {
+    @Test
+    public void testGroupAddresses() {
+        assertTrue("IPv4 group is multicast", InterfaceSelector.MDNS_GROUP_IPV4.isMulticastAddress());
+        assertTrue("IPv6 group is multicast", InterfaceSelector.MDNS_GROUP_IPV6.isMulticastAddress());
+        assertTrue("IPv4 endpoint uses the mDNS port",
+                InterfaceSelector.MDNS_ENDPOINT_IPV4.getPort() == Query.MDNS_PORT);
+        assertTrue("IPv6 endpoint uses the mDNS port",
+                InterfaceSelector.MDNS_ENDPOINT_IPV6.getPort() == Query.MDNS_PORT);
+    }
+
+    @Test
+    public void testLoopbackIsNotEligible() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assertTrue("Found loopback interface", loopback != null);
+        assertFalse("Loopback isn't eligible", InterfaceSelector.isEligible(loopback));
+    }
+
+    @Test
+    public void testSelectionIsCached() throws IOException {
+        InterfaceSelector selector = new InterfaceSelector();
+        List<NetworkInterface> eligible = selector.getEligibleInterfaces();
+        assertTrue("Cached selection reused", selector.getEligibleInterfaces() == eligible);
+        for (NetworkInterface networkInterface : eligible) {
+            assertTrue(networkInterface.getName() + " is eligible", InterfaceSelector.isEligible(networkInterface));
+        }
+        selector.refresh();
+        assertTrue("Refresh replaces the selection", selector.getEligibleInterfaces() != eligible);
+        assertTrue("Interfaces unchanged", selector.getEligibleInterfaces().equals(eligible));
+    }
+}
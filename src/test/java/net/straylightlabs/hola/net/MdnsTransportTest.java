@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.straylightlabs.hola.net;
+
+import net.straylightlabs.hola.dns.Response;
+import net.straylightlabs.hola.sd.Query;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.straylightlabs.hola.TestResources.loadBuffer;
+import static org.junit.Assert.assertTrue;
+
+public class MdnsTransportTest {
+    private final InetSocketAddress responder = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+            Query.MDNS_PORT);
+    private ReceiveEngine engine;
+    private MdnsTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new ReceiveEngine();
+        engine.start();
+        transport = new MdnsTransport(NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress()), engine);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void testResponsesAreRoutedBySubscribedName() throws IOException {
+        List<Response> airport = new ArrayList<>();
+        List<Response> http = new ArrayList<>();
+        transport.subscribe("_airport._tcp.local.", airport::add);
+        transport.subscribe("_http._tcp.local.", http::add);
+
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"), responder);
+        assertTrue("Routed to the matching subscriber", airport.size() == 1);
+        assertTrue("Not routed to other subscribers", http.isEmpty());
+    }
+
+    @Test
+    public void testListenerGetsEachResponseOnce() throws IOException {
+        List<Response> received = new ArrayList<>();
+        ResponseListener listener = received::add;
+        transport.subscribe("_airport._tcp.local.", listener);
+        transport.subscribe("annuvin._airport._tcp.local.", listener);
+        transport.subscribe("annuvin.local.", listener);
+
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"), responder);
+        assertTrue("Delivered once: " + received.size(), received.size() == 1);
+    }
+
+    @Test
+    public void testUnsubscribedListenerIsSilent() throws IOException {
+        List<Response> received = new ArrayList<>();
+        ResponseListener listener = received::add;
+        transport.subscribe("_airport._tcp.local.", listener);
+        transport.unsubscribe(listener);
+
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"), responder);
+        assertTrue("Nothing delivered", received.isEmpty());
+    }
+
+    @Test
+    public void testDuplicatesAreSuppressed() throws IOException {
+        List<Response> received = new ArrayList<>();
+        transport.subscribe("_airport._tcp.local.", received::add);
+
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"), responder);
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"), responder);
+        assertTrue("Copy dropped", received.size() == 1);
+        assertTrue("Copy counted", transport.getSuppressedCount() == 1);
+    }
+
+    @Test
+    public void testResponsesFromElsewhereAreDropped() throws IOException {
+        List<Response> received = new ArrayList<>();
+        transport.subscribe("_airport._tcp.local.", received::add);
+
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 12345));
+        assertTrue("Wrong source port dropped", received.isEmpty());
+        transport.packetReceived(loadBuffer("response-mdns-appletv-1"),
+                new InetSocketAddress(InetAddress.getByName("192.0.2.1"), Query.MDNS_PORT));
+        assertTrue("Another link's source dropped", received.isEmpty());
+        transport.packetReceived(loadBuffer("response-not-mdns"), responder);
+        assertTrue("Malformed packet dropped", received.isEmpty());
+    }
+}
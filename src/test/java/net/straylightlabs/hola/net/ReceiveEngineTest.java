@@ -0,0 +1,138 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class ReceiveEngineTest {
+    private ReceiveEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new ReceiveEngine();
+        engine.start();
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void testDatagramsAreDelivered() throws IOException, InterruptedException {
+        try (DatagramChannel receiver = openLoopbackChannel(); DatagramChannel sender = openLoopbackChannel()) {
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            List<SocketAddress> sources = new CopyOnWriteArrayList<>();
+            engine.register(receiver, (buffer, source) -> {
+                sources.add(source);
+                received.add(StandardCharsets.UTF_8.decode(buffer).toString());
+            });
+
+            send(sender, receiver, "first");
+            send(sender, receiver, "second");
+            assertTrue("First datagram delivered", "first".equals(received.poll(5, TimeUnit.SECONDS)));
+            assertTrue("Second datagram delivered", "second".equals(received.poll(5, TimeUnit.SECONDS)));
+            assertTrue("Source reported: " + sources, sources.get(0).equals(sender.getLocalAddress()));
+        }
+    }
+
+    @Test
+    public void testUnregisteredChannelIsSilent() throws IOException, InterruptedException {
+        try (DatagramChannel receiver = openLoopbackChannel(); DatagramChannel sender = openLoopbackChannel()) {
+            BlockingQueue<String> received = new LinkedBlockingQueue<>();
+            engine.register(receiver,
+                    (buffer, source) -> received.add(StandardCharsets.UTF_8.decode(buffer).toString()));
+            send(sender, receiver, "before");
+            assertTrue("Delivered while registered", "before".equals(received.poll(5, TimeUnit.SECONDS)));
+
+            engine.unregister(receiver);
+            send(sender, receiver, "after");
+            assertTrue("Nothing delivered once unregistered", received.poll(200, TimeUnit.MILLISECONDS) == null);
+        }
+    }
+
+    @Test
+    public void testTimersRunInDueOrder() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(4);
+        for (int delay : new int[]{150, 0, 100, 50}) {
+            engine.schedule(() -> {
+                order.add(delay);
+                done.countDown();
+            }, delay);
+        }
+        assertTrue("Every timer ran", done.await(5, TimeUnit.SECONDS));
+        assertTrue("Ran in order: " + order, order.equals(Arrays.asList(0, 50, 100, 150)));
+    }
+
+    @Test
+    public void testCancelledTimersAreRemoved() {
+        List<ReceiveEngine.Timer> timers = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            timers.add(engine.schedule(() -> {
+            }, TimeUnit.HOURS.toMillis(1)));
+        }
+        assertTrue("Timers queued", engine.getTimerCount() == 1000);
+        timers.forEach(ReceiveEngine.Timer::cancel);
+        assertTrue("Cancelled timers removed", engine.getTimerCount() == 0);
+    }
+
+    @Test
+    public void testCancelledTimerDoesNotRun() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(1);
+        engine.schedule(ran::countDown, 50).cancel();
+        assertTrue("Cancelled timer didn't run", !ran.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static DatagramChannel openLoopbackChannel() throws IOException {
+        return DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    private static void send(DatagramChannel sender, DatagramChannel receiver, String payload) throws IOException {
+        sender.send(ByteBuffer.wrap(payload.getBytes(StandardCharsets.UTF_8)), receiver.getLocalAddress());
+    }
+}
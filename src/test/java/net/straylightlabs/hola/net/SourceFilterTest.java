@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.straylightlabs.hola.net;
+
+import org.junit.Test;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SourceFilterTest {
+    @Test
+    public void testSourcesOnSubnetAreAccepted() throws UnknownHostException {
+        SourceFilter filter = new SourceFilter(2);
+        filter.addNetwork(InetAddress.getByName("192.168.1.10"), 24);
+        filter.addNetwork(InetAddress.getByName("2001:db8:0:1::5"), 64);
+        assertTrue("Same IPv4 subnet", filter.isOnLink(InetAddress.getByName("192.168.1.77")));
+        assertFalse("Other IPv4 subnet", filter.isOnLink(InetAddress.getByName("192.168.2.77")));
+        assertTrue("Same IPv6 prefix", filter.isOnLink(InetAddress.getByName("2001:db8:0:1::99")));
+        assertFalse("Other IPv6 prefix", filter.isOnLink(InetAddress.getByName("2001:db8:0:2::99")));
+    }
+
+    @Test
+    public void testPrefixesNeedNotEndOnAByte() throws UnknownHostException {
+        SourceFilter filter = new SourceFilter(2);
+        filter.addNetwork(InetAddress.getByName("10.0.4.1"), 20);
+        assertTrue("Start of subnet", filter.isOnLink(InetAddress.getByName("10.0.0.1")));
+        assertTrue("End of subnet", filter.isOnLink(InetAddress.getByName("10.0.15.254")));
+        assertFalse("Past the subnet", filter.isOnLink(InetAddress.getByName("10.0.16.1")));
+    }
+
+    @Test
+    public void testIpv6LinkLocalSourcesMustBeScopedToTheInterface() throws UnknownHostException {
+        SourceFilter filter = new SourceFilter(2);
+        filter.addNetwork(InetAddress.getByName("fe80::5"), 64);
+        byte[] linkLocal = InetAddress.getByName("fe80::1").getAddress();
+        assertTrue("Received on this interface", filter.isOnLink(Inet6Address.getByAddress(null, linkLocal, 2)));
+        assertFalse("Received on another interface", filter.isOnLink(Inet6Address.getByAddress(null, linkLocal, 3)));
+    }
+
+    @Test
+    public void testIpv4LinkLocalSourcesNeedALinkLocalAddress() throws UnknownHostException {
+        SourceFilter filter = new SourceFilter(2);
+        filter.addNetwork(InetAddress.getByName("192.168.1.10"), 24);
+        assertFalse("Interface without a link-local address",
+                filter.isOnLink(InetAddress.getByName("169.254.3.4")));
+        filter.addNetwork(InetAddress.getByName("169.254.7.8"), 16);
+        assertTrue("Interface with a link-local address", filter.isOnLink(InetAddress.getByName("169.254.3.4")));
+    }
+
+    @Test
+    public void testInterfaceAddressesAreUsed() throws SocketException, UnknownHostException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        SourceFilter filter = SourceFilter.forInterface(loopback);
+        assertTrue("Loopback address accepted", filter.isOnLink(InetAddress.getLoopbackAddress()));
+        assertFalse("Routable address rejected", filter.isOnLink(InetAddress.getByName("192.0.2.1")));
+    }
+}
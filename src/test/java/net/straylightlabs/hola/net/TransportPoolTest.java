@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class TransportPoolTest {
+    private ReceiveEngine engine;
+    private List<String> opened;
+    private List<String> closed;
+
+    @Before
+    public void setUp() throws IOException {
+        engine = new ReceiveEngine();
+        engine.start();
+        opened = Collections.synchronizedList(new ArrayList<>());
+        closed = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    @Test
+    public void testReleasedTransportIsReused() throws IOException {
+        TransportPool<String, String> pool = buildPool(60000);
+        String first = pool.acquire("eth0");
+        pool.release("eth0");
+        assertTrue("Idle transport kept open", closed.isEmpty() && pool.getIdleCount() == 1);
+        String second = pool.acquire("eth0");
+        assertTrue("Same transport borrowed", second == first && opened.size() == 1);
+        assertTrue("Borrowed transport isn't idle", pool.getIdleCount() == 0);
+        assertTrue("One miss, one hit", pool.getMissCount() == 1 && pool.getHitCount() == 1);
+
+        pool.acquire("wlan0");
+        assertTrue("Each key has its own transport", opened.size() == 2 && pool.getMissCount() == 2);
+    }
+
+    @Test
+    public void testIdleTransportIsEvicted() throws IOException, InterruptedException {
+        TransportPool<String, String> pool = buildPool(50);
+        pool.acquire("eth0");
+        pool.acquire("eth0");
+        pool.release("eth0");
+        Thread.sleep(150);
+        assertTrue("Borrowed transport stays open", closed.isEmpty());
+        pool.release("eth0");
+        Thread.sleep(150);
+        assertTrue("Idle transport closed", closed.size() == 1 && pool.getIdleCount() == 0);
+        pool.acquire("eth0");
+        assertTrue("Evicted transport reopened", opened.size() == 2 && pool.getMissCount() == 2);
+    }
+
+    @Test
+    public void testPrewarmedTransportIsAHit() throws IOException {
+        TransportPool<String, String> pool = buildPool(60000);
+        pool.prewarm("eth0");
+        assertTrue("Prewarmed transport is idle", opened.size() == 1 && pool.getIdleCount() == 1);
+        pool.acquire("eth0");
+        assertTrue("Prewarmed transport borrowed", opened.size() == 1 && pool.getHitCount() == 1);
+        assertTrue("Prewarming isn't a miss", pool.getMissCount() == 0);
+    }
+
+    @Test
+    public void testEvictIdleOnlyClosesIdleTransports() throws IOException {
+        TransportPool<String, String> pool = buildPool(60000);
+        pool.acquire("eth0");
+        pool.acquire("wlan0");
+        pool.release("wlan0");
+        pool.evictIdle();
+        assertTrue("Only the idle transport closed", closed.equals(Collections.singletonList("wlan0")));
+    }
+
+    @Test
+    public void testNoIdleTimeoutClosesOnRelease() throws IOException {
+        TransportPool<String, String> pool = buildPool(0);
+        pool.acquire("eth0");
+        pool.release("eth0");
+        assertTrue("Closed on release", closed.size() == 1 && pool.getIdleCount() == 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnbalancedRelease() throws IOException {
+        TransportPool<String, String> pool = buildPool(60000);
+        pool.acquire("eth0");
+        pool.release("eth0");
+        pool.release("eth0");
+    }
+
+    private TransportPool<String, String> buildPool(long idleTimeout) {
+        return new TransportPool<>(new TransportPool.Factory<String, String>() {
+            @Override
+            public String open(String key) {
+                String transport = new String(key);
+                opened.add(transport);
+                return transport;
+            }
+
+            @Override
+            public void close(String transport) {
+                closed.add(transport);
+            }
+        }, engine::schedule, idleTimeout);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.*;
+
+import static net.straylightlabs.hola.TestResources.loadRecords;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BrowseResultTest {
+    private final Service service = Service.fromName("_airport._tcp");
+
+    @Test
+    public void testInstancesAreAttributedToInterfaces() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assertTrue("Found loopback interface", loopback != null);
+        Set<Instance> instances = TestInstances.fromRecords(service,
+                loadRecords("response-mdns-appletv-1", "response-mdns-appletv-2"));
+        assertTrue("Built one instance", instances.size() == 1);
+        Instance instance = instances.iterator().next();
+
+        Map<NetworkInterface, Set<Instance>> found = new HashMap<>();
+        found.put(loopback, instances);
+        BrowseResult result = new BrowseResult(found);
+
+        assertTrue("Merged instances", result.getInstances().equals(instances));
+        assertTrue("Browsed interfaces", result.getInterfaces().equals(Collections.singleton(loopback)));
+        assertTrue("Instances on loopback", result.getInstancesOn(loopback).equals(instances));
+        assertTrue("Instance found on loopback",
+                result.getInterfacesFor(instance).equals(Collections.singleton(loopback)));
+    }
+
+    @Test
+    public void testDeviceOnTwoInterfacesIsListedOnce() throws IOException {
+        List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+        assumeTrue("Needs two network interfaces", interfaces.size() >= 2);
+        NetworkInterface wired = interfaces.get(0);
+        NetworkInterface wireless = interfaces.get(1);
+        Instance onWired = instance("annuvin", "10.0.0.1");
+        Instance onWireless = instance("annuvin", "10.0.1.1");
+
+        Map<NetworkInterface, Set<Instance>> found = new LinkedHashMap<>();
+        found.put(wired, Collections.singleton(onWired));
+        found.put(wireless, Collections.singleton(onWireless));
+        BrowseResult result = new BrowseResult(found);
+
+        assertTrue("One merged instance: " + result.getInstances(), result.getInstances().size() == 1);
+        Instance merged = result.getInstances().iterator().next();
+        assertTrue("Addresses from both interfaces: " + merged, merged.getAddresses().size() == 2);
+        Set<NetworkInterface> both = new HashSet<>(Arrays.asList(wired, wireless));
+        assertTrue("Found on both interfaces", result.getInterfacesFor(merged).equals(both));
+        assertTrue("Looked up by either copy", result.getInterfacesFor(onWired).equals(both) &&
+                result.getInterfacesFor(onWireless).equals(both));
+        assertTrue("Each interface keeps its own copy",
+                result.getInstancesOn(wireless).equals(Collections.singleton(onWireless)));
+    }
+
+    @Test
+    public void testCopiesWithTheSameNameAreMerged() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        Instance first = instance("annuvin", "10.0.0.1");
+        Instance second = instance("annuvin", "fe80::1");
+        Instance other = instance("bedroom", "10.0.0.2");
+
+        Map<NetworkInterface, Set<Instance>> found = new HashMap<>();
+        found.put(loopback, new HashSet<>(Arrays.asList(first, second, other)));
+        BrowseResult result = new BrowseResult(found);
+
+        assertTrue("One instance per name: " + result.getInstances(), result.getInstances().size() == 2);
+        for (Instance instance : result.getInstances()) {
+            if (instance.getName().equals("annuvin")) {
+                assertTrue("Addresses merged: " + instance, instance.getAddresses().size() == 2);
+            }
+        }
+    }
+
+    @Test
+    public void testInterfaceWithNothingFound() throws IOException {
+        NetworkInterface loopback = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assertTrue("Found loopback interface", loopback != null);
+
+        Map<NetworkInterface, Set<Instance>> found = new HashMap<>();
+        found.put(loopback, Collections.emptySet());
+        BrowseResult result = new BrowseResult(found);
+
+        assertTrue("No instances", result.getInstances().isEmpty());
+        assertTrue("Interface still listed", result.getInterfaces().contains(loopback));
+        assertTrue("Nothing on loopback", result.getInstancesOn(loopback).isEmpty());
+    }
+
+    private static Instance instance(String name, String address) throws UnknownHostException {
+        return new Instance(name, Collections.singletonList(InetAddress.getByName(address)), 5009,
+                Collections.emptyMap());
+    }
+}
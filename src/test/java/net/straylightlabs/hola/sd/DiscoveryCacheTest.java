@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Domain;
+import net.straylightlabs.hola.dns.Record;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static net.straylightlabs.hola.TestResources.loadRecords;
+import static org.junit.Assert.assertTrue;
+
+public class DiscoveryCacheTest {
+    private final Service service = Service.fromName("_airport._tcp");
+
+    @Test
+    public void testLookupReturnsStoredInstances() throws IOException {
+        DiscoveryCache cache = new DiscoveryCache();
+        assertTrue("Nothing cached yet", cache.lookup("eth0", service, Domain.LOCAL) == null);
+
+        List<Record> records = loadRecords("response-mdns-appletv-1", "response-mdns-appletv-2");
+        Set<Instance> instances = TestInstances.fromRecords(service, records);
+        cache.store("eth0", service, Domain.LOCAL, records, instances);
+
+        Set<Instance> cached = cache.lookup("eth0", service, Domain.LOCAL);
+        assertTrue("Instances cached", cached != null && cached.equals(instances));
+        assertTrue("Records cached", !cache.getRecords("eth0", service, Domain.LOCAL).isEmpty());
+        assertTrue("Other interfaces not cached", cache.lookup("wlan0", service, Domain.LOCAL) == null);
+        assertTrue("Other services not cached",
+                cache.lookup("eth0", Service.fromName("_http._tcp"), Domain.LOCAL) == null);
+    }
+
+    @Test
+    public void testEmptyResultsAreNotCached() throws IOException {
+        DiscoveryCache cache = new DiscoveryCache();
+        List<Record> records = loadRecords("response-mdns-appletv-1", "response-mdns-appletv-2");
+        cache.store("eth0", service, Domain.LOCAL, records, TestInstances.fromRecords(service, records));
+        cache.store("eth0", service, Domain.LOCAL, records, Collections.emptySet());
+        assertTrue("Empty result replaced the entry", cache.lookup("eth0", service, Domain.LOCAL) == null);
+    }
+
+    @Test
+    public void testOnlyOneRefreshAtATime() throws InterruptedException {
+        DiscoveryCache cache = new DiscoveryCache();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        assertTrue("First refresh started", cache.refreshInBackground("eth0", service, Domain.LOCAL, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        }));
+        assertFalse("Second refresh skipped", cache.refreshInBackground("eth0", service, Domain.LOCAL, () -> {
+        }));
+        release.countDown();
+        assertTrue("First refresh finished", finished.await(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class LatencyTrackerTest {
+    private final Service airport = Service.fromName("_airport._tcp");
+    private final Service tivo = Service.fromName("_tivo-mindrpc._tcp");
+
+    @Test
+    public void testDefaultUntilEnoughSamples() {
+        LatencyTracker tracker = new LatencyTracker();
+        assertTrue("Default with no samples", tracker.adaptiveTimeout("eth0", airport, 750) == 750);
+        tracker.record("eth0", airport, Arrays.asList(20L, 30L));
+        assertTrue("Default with too few samples", tracker.adaptiveTimeout("eth0", airport, 750) == 750);
+    }
+
+    @Test
+    public void testTimeoutFollowsHighPercentile() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record("eth0", airport, latencies(100, 200));
+        long p95 = tracker.getPercentile("eth0", airport, 0.95);
+        assertTrue("95th percentile: " + p95, p95 == 194);
+        long timeout = tracker.adaptiveTimeout("eth0", airport, 750);
+        assertTrue("Timeout leaves headroom: " + timeout, timeout > p95 && timeout < 750);
+    }
+
+    @Test
+    public void testFallsBackToInterface() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record("wlan0", airport, latencies(500, 1500));
+        long timeout = tracker.adaptiveTimeout("wlan0", tivo, 750);
+        assertTrue("Slow interface gets a longer timeout: " + timeout, timeout > 750);
+        assertTrue("Other interfaces unaffected", tracker.adaptiveTimeout("eth0", tivo, 750) == 750);
+    }
+
+    @Test
+    public void testTimeoutIsBounded() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record("eth0", airport, latencies(1, 20));
+        tracker.record("wlan0", airport, latencies(10000, 20000));
+        assertTrue("Lower bound", tracker.adaptiveTimeout("eth0", airport, 750) >= 100);
+        assertTrue("Upper bound", tracker.adaptiveTimeout("wlan0", airport, 750) <= 3000);
+    }
+
+    @Test
+    public void testDefaultTimeoutIsProbedPeriodically() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record("eth0", airport, latencies(10, 20));
+        for (int i = 1; i < LatencyTracker.PROBE_INTERVAL; i++) {
+            assertTrue("Adaptive timeout " + i, tracker.adaptiveTimeout("eth0", airport, 750) < 750);
+        }
+        assertTrue("Probe uses the default", tracker.adaptiveTimeout("eth0", airport, 750) == 750);
+        assertTrue("Adaptive after the probe", tracker.adaptiveTimeout("eth0", airport, 750) < 750);
+
+        tracker.record("eth0", airport, latencies(600, 700));
+        long timeout = tracker.adaptiveTimeout("eth0", airport, 750);
+        assertTrue("Late responses seen by the probe raise the timeout: " + timeout, timeout > 750);
+    }
+
+    /**
+     * Build 20 evenly spaced latencies from first to last.
+     */
+    private static List<Long> latencies(long first, long last) {
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            latencies.add(first + (last - first) * i / 19);
+        }
+        return latencies;
+    }
+}
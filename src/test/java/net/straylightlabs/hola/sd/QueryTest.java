@@ -27,8 +27,10 @@
 package net.straylightlabs.hola.sd;
 
 import net.straylightlabs.hola.dns.Domain;
+import net.straylightlabs.hola.dns.PacketWriter;
+import net.straylightlabs.hola.dns.PtrRecord;
+import net.straylightlabs.hola.dns.Record;
 import net.straylightlabs.hola.dns.Response;
-import net.straylightlabs.hola.utils.Utils;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,13 +38,12 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.function.Consumer;
 
+import static net.straylightlabs.hola.TestResources.loadPacket;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class QueryTest {
@@ -101,30 +102,218 @@ public class QueryTest {
         assertTrue(found.contains(expected));
     }
 
+    @Test
+    public void testResolvedInstancesAreEmittedEarly() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        List<Instance> emitted = new ArrayList<>();
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS, emitted::add);
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+
+        assertTrue("One instance emitted: " + emitted.size(), emitted.size() == 1);
+        assertTrue(emitted.get(0).getName().equals("annuvin"));
+        assertTrue(emitted.get(0).getPort() == 5009);
+        assertFalse(emitted.get(0).getAddresses().isEmpty());
+    }
+
+    @Test
+    public void testFreshRecordsAreKnownAnswers() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        assertTrue(query.knownAnswers().isEmpty());
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+        assertTrue(query.knownAnswers().size() == 1);
+    }
+
+    @Test
+    public void testOnlyRecordsForOurInstancesAreCached() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+
+        Set<String> cached = new HashSet<>();
+        for (Record record : query.getRecords()) {
+            cached.add(record.getType() + " " + record.getName());
+        }
+        Set<String> expected = new HashSet<>(Arrays.asList("PTR _airport._tcp.local.",
+                "SRV annuvin._airport._tcp.local.", "TXT annuvin._airport._tcp.local.", "A annuvin.local.",
+                "AAAA annuvin.local."));
+        assertTrue("Cached " + cached, cached.equals(expected));
+    }
+
+    @Test
+    public void testNamesOfCachedRecordsAreWatched() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+
+        Set<String> expected = new HashSet<>(Arrays.asList("_airport._tcp.local.", "annuvin._airport._tcp.local.",
+                "annuvin.local."));
+        assertTrue("Watching " + query.getWatchedNames(), query.getWatchedNames().equals(expected));
+    }
+
+    @Test
+    public void testInstancesWithoutSrvRecordsAreSkipped() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        query.parseResponsePacket(ptrOnlyPacket("response-mdns-appletv-1"));
+        assertTrue("PTR record cached", query.knownAnswers().size() == 1);
+        query.buildInstancesFromRecords();
+        assertTrue("No instance without an SRV record", query.getInstances().isEmpty());
+
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.buildInstancesFromRecords();
+        assertTrue("Instance built once its SRV record arrives", query.getInstances().size() == 1);
+    }
+
+    @Test
+    public void testRunsDoNotShareState() throws IOException, InterruptedException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+        assertTrue(query.knownAnswers().size() == 1);
+
+        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+        assertTrue("New run has no records", query.knownAnswers().isEmpty());
+        assertTrue("New run has no instances", query.getInstances().isEmpty());
+
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int j = 0; j < 50; j++) {
+                        query.runOnceOn(Query.TEST_SUITE_ADDRESS);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failures.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Concurrent runs succeeded: " + failures, failures.isEmpty());
+    }
+
+    @Test
+    public void testContinuousQueryPublishesNewInstances() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        List<Instance> added = new ArrayList<>();
+        List<Instance> updated = new ArrayList<>();
+        query.startOn(Query.TEST_SUITE_ADDRESS, new BrowseListener() {
+            @Override
+            public void instanceAdded(Instance instance) {
+                added.add(instance);
+            }
+
+            @Override
+            public void instanceRemoved(Instance instance) {
+                throw new IllegalStateException("No instances should be removed");
+            }
+
+            @Override
+            public void instanceUpdated(Instance instance) {
+                updated.add(instance);
+            }
+        });
+        assertTrue(query.isBrowsing());
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.publishChanges();
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+        query.publishChanges();
+        query.stop();
+        assertFalse(query.isBrowsing());
+
+        assertTrue(added.size() == 1);
+        assertTrue(added.get(0).getName().equals("annuvin"));
+        assertTrue(added.get(0).getPort() == 5009);
+        assertTrue(updated.isEmpty() || updated.get(updated.size() - 1).getAddresses().size() == 2);
+    }
+
+    @Test
+    public void testListenerCanStopItsQuery() throws IOException {
+        Service service = Service.fromName("_airport._tcp");
+        Query query = Query.createFor(service, Domain.LOCAL);
+        List<Instance> added = new ArrayList<>();
+        query.startOn(Query.TEST_SUITE_ADDRESS, new BrowseListener() {
+            @Override
+            public void instanceAdded(Instance instance) {
+                added.add(instance);
+                query.stop();
+            }
+
+            @Override
+            public void instanceRemoved(Instance instance) {
+                throw new IllegalStateException("Stopped queries should not report changes");
+            }
+
+            @Override
+            public void instanceUpdated(Instance instance) {
+                throw new IllegalStateException("Stopped queries should not report changes");
+            }
+        });
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-1"));
+        query.publishChanges();
+        assertFalse("Stopped by its listener", query.isBrowsing());
+        query.parseResponsePacket(loadPacket("response-mdns-appletv-2"));
+        query.publishChanges();
+        assertTrue("Only the first change reported", added.size() == 1);
+    }
+
+    @Test
+    public void testInstancesFromSeveralInterfacesAreEmittedOncePerName() throws IOException {
+        Map<String, String> attributes = new HashMap<>();
+        Instance wired = new Instance("annuvin", Collections.singletonList(InetAddress.getByName("10.0.0.1")), 5009,
+                attributes);
+        Instance wireless = new Instance("annuvin", Collections.singletonList(InetAddress.getByName("10.0.1.1")), 5009,
+                attributes);
+        Instance other = new Instance("bedroom", Collections.singletonList(InetAddress.getByName("10.0.0.2")), 5009,
+                attributes);
+
+        List<Instance> emitted = new ArrayList<>();
+        Consumer<Instance> consumer = Query.oncePerName(emitted::add);
+        consumer.accept(wired);
+        consumer.accept(wireless);
+        consumer.accept(other);
+        assertTrue("Emitted " + emitted, emitted.equals(Arrays.asList(wired, other)));
+    }
+
     @Test(expected = IllegalArgumentException.class)
-    public void testInvalidResponse() {
+    public void testInvalidResponse() throws IOException {
         loadResponse("response-not-mdns");
     }
 
-    private DatagramPacket loadPacket(String resourceName) {
-        try {
-            URL resourceURL = getClass().getClassLoader().getResource(resourceName);
-            if (resourceURL != null) {
-                Path resource = Paths.get(resourceURL.toURI());
-                byte[] responseBuffer = Files.readAllBytes(resource);
-                Utils.printBuffer(responseBuffer, "Buffer from disk");
-                return new DatagramPacket(responseBuffer, responseBuffer.length);
+    /**
+     * Build a response holding only the PTR records from resourceName, as if the responder's SRV record were lost.
+     */
+    private DatagramPacket ptrOnlyPacket(String resourceName) throws IOException {
+        PacketWriter writer = new PacketWriter(1500);
+        for (Record record : loadResponse(resourceName).getRecordList()) {
+            if (record instanceof PtrRecord) {
+                writer.addKnownAnswer((PtrRecord) record);
             }
-        } catch (IOException e) {
-            logger.error("Error reading file: {}", e.getLocalizedMessage());
-        } catch (URISyntaxException e) {
-            logger.error("Error creating URI: {}", e.getLocalizedMessage());
         }
-
-        return null;
+        ByteBuffer packet = writer.finish();
+        packet.putShort(2, (short) 0x8400); // Authoritative response
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return new DatagramPacket(bytes, bytes.length);
     }
 
-    private Response loadResponse(String resourceName) {
+    private Response loadResponse(String resourceName) throws IOException {
         return Response.createFrom(loadPacket(resourceName));
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Record;
+import net.straylightlabs.hola.dns.RecordTest;
+import net.straylightlabs.hola.net.ReceiveEngine;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class RecordCacheTest {
+    @Test
+    public void testEvictExpiredWhileDetached() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        RecordCache cache = new RecordCache(listener);
+        Record expired = buildRecord("Zelda._http._tcp.local.", 1);
+        Record live = buildRecord("Link._http._tcp.local.", 3600);
+        cache.add(expired);
+        cache.add(live);
+        Thread.sleep(1100);
+        cache.evictExpired();
+
+        assertTrue("One record left", cache.size() == 1);
+        assertTrue("Live record kept", cache.getRecords().contains(live));
+        assertTrue("Listener told about expired record", listener.expired.contains(expired));
+    }
+
+    @Test
+    public void testTimersRefreshAndExpire() throws IOException, InterruptedException {
+        ReceiveEngine engine = new ReceiveEngine();
+        engine.start();
+        try {
+            RecordingListener listener = new RecordingListener();
+            RecordCache cache = new RecordCache(listener);
+            Record record = buildRecord("Zelda._http._tcp.local.", 1);
+            engine.runAndWait(() -> {
+                cache.attach(engine);
+                cache.add(record);
+            });
+
+            assertTrue("Record expired", listener.expiredLatch.await(3, TimeUnit.SECONDS));
+            assertTrue("Record was refreshed before expiring: " + listener.refreshed.size(),
+                    listener.refreshed.size() == 4);
+            engine.runAndWait(() -> assertTrue("Cache is empty", cache.size() == 0));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testRepeatedRecordReplacesOriginal() throws InterruptedException {
+        RecordCache cache = new RecordCache(new RecordingListener());
+        Record record = buildRecord("Zelda._http._tcp.local.", 120);
+        cache.add(record);
+        Thread.sleep(10);
+        Record repeat = buildRecord("Zelda._http._tcp.local.", 120);
+        cache.add(repeat);
+
+        assertTrue("No duplicate added", cache.size() == 1);
+        Record cached = cache.getRecords().iterator().next();
+        assertTrue("Newer copy kept", cached == repeat && cached.getReceivedAt() > record.getReceivedAt());
+        assertTrue("Index holds one record", cache.getIndex().get(Record.Type.SRV).size() == 1);
+    }
+
+    @Test
+    public void testGoodbyeEvictsMatchingRecord() {
+        RecordingListener listener = new RecordingListener();
+        RecordCache cache = new RecordCache(listener);
+        Record record = buildRecord("Zelda._http._tcp.local.", 3600, 80, false);
+        Record other = buildRecord("Zelda._http._tcp.local.", 3600, 8080, false);
+        cache.add(record);
+        cache.add(other);
+        cache.add(buildRecord("Zelda._http._tcp.local.", 0, 80, false));
+
+        assertTrue("One record left", cache.size() == 1);
+        assertTrue("Different record kept", cache.getRecords().contains(other));
+        assertTrue("Listener told about evicted record", listener.expired.contains(record));
+    }
+
+    @Test
+    public void testCacheFlushExpiresOlderRecords() throws IOException, InterruptedException {
+        ReceiveEngine engine = new ReceiveEngine();
+        engine.start();
+        try {
+            RecordingListener listener = new RecordingListener();
+            RecordCache cache = new RecordCache(listener);
+            Record old = buildRecord("Zelda._http._tcp.local.", 3600, 80, false);
+            engine.runAndWait(() -> {
+                cache.attach(engine);
+                cache.add(old);
+            });
+            Thread.sleep(1100);
+            Record recent = buildRecord("Zelda._http._tcp.local.", 3600, 8080, false);
+            Record flush = buildRecord("Zelda._http._tcp.local.", 3600, 8081, true);
+            engine.runAndWait(() -> {
+                cache.add(recent);
+                cache.add(flush);
+            });
+
+            assertTrue("Old record expired", listener.expiredLatch.await(3, TimeUnit.SECONDS));
+            assertTrue("Only the old record expired", listener.expired.size() == 1 &&
+                    listener.expired.contains(old));
+            engine.runAndWait(() -> {
+                assertTrue("Two records left", cache.size() == 2);
+                assertTrue("Recent record kept", cache.getRecords().contains(recent));
+                assertTrue("Flush record kept", cache.getRecords().contains(flush));
+            });
+        } finally {
+            engine.close();
+        }
+    }
+
+    static Record buildRecord(String name, int ttl) {
+        return buildRecord(name, ttl, 80, false);
+    }
+
+    static Record buildRecord(String name, int ttl, int port, boolean cacheFlush) {
+        ByteBuffer buffer = ByteBuffer.allocate(500);
+        RecordTest.addNameToBuffer(name, buffer);
+        buffer.putShort((short) Record.Type.SRV.asUnsignedShort());
+        buffer.putShort((short) (cacheFlush ? 0x8001 : 1)); // IN, plus the cache-flush bit
+        buffer.putInt(ttl);
+        buffer.putShort((short) 0); // SrvRecord doesn't use RDLENGTH
+        buffer.putShort((short) 0); // priority
+        buffer.putShort((short) 0); // weight
+        buffer.putShort((short) port);
+        RecordTest.addNameToBuffer("zelda.local.", buffer);
+        buffer.flip();
+        return Record.fromBuffer(buffer);
+    }
+
+    private static class RecordingListener implements RecordCache.Listener {
+        private final List<Record> refreshed = new ArrayList<>();
+        private final List<Record> expired = new ArrayList<>();
+        private final CountDownLatch expiredLatch = new CountDownLatch(1);
+
+        @Override
+        public void refreshNeeded(Record record) {
+            refreshed.add(record);
+        }
+
+        @Override
+        public void recordExpired(Record record) {
+            expired.add(record);
+            expiredLatch.countDown();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Record;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordIndexTest {
+    @Test
+    public void testLookupByNameAndType() {
+        Record zelda = RecordCacheTest.buildRecord("Zelda._http._tcp.local.", 120);
+        Record link = RecordCacheTest.buildRecord("Link._http._tcp.local.", 120);
+        RecordIndex index = new RecordIndex(Arrays.asList(zelda, link));
+
+        assertTrue("Found by name and type", index.get("Zelda._http._tcp.local.", Record.Type.SRV).contains(zelda));
+        assertTrue("Only one record per name", index.get("Zelda._http._tcp.local.", Record.Type.SRV).size() == 1);
+        assertTrue("Found by type", index.get(Record.Type.SRV).size() == 2);
+        assertFalse("No TXT record", index.contains("Zelda._http._tcp.local.", Record.Type.TXT));
+        assertTrue("Unknown name is empty", index.get("Ganon._http._tcp.local.", Record.Type.SRV).isEmpty());
+    }
+
+    @Test
+    public void testRemove() {
+        Record zelda = RecordCacheTest.buildRecord("Zelda._http._tcp.local.", 120);
+        Record link = RecordCacheTest.buildRecord("Link._http._tcp.local.", 120);
+        RecordIndex index = new RecordIndex(Arrays.asList(zelda, link));
+        index.remove(zelda);
+
+        assertFalse("Removed record is gone", index.contains("Zelda._http._tcp.local.", Record.Type.SRV));
+        assertTrue("Other record kept", index.contains("Link._http._tcp.local.", Record.Type.SRV));
+        assertTrue("Type index updated", index.get(Record.Type.SRV).size() == 1);
+    }
+
+    @Test
+    public void testCacheKeepsIndexCurrent() {
+        RecordCache cache = new RecordCache(new RecordCache.Listener() {
+            @Override
+            public void refreshNeeded(Record record) {
+            }
+
+            @Override
+            public void recordExpired(Record record) {
+            }
+        });
+        cache.add(RecordCacheTest.buildRecord("Zelda._http._tcp.local.", 120, 80, false));
+        assertTrue("Added record indexed", cache.getIndex().contains("Zelda._http._tcp.local.", Record.Type.SRV));
+        cache.add(RecordCacheTest.buildRecord("Zelda._http._tcp.local.", 0, 80, false));
+        assertFalse("Goodbye removed record from index",
+                cache.getIndex().contains("Zelda._http._tcp.local.", Record.Type.SRV));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Question;
+import net.straylightlabs.hola.net.ReceiveEngine;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertTrue;
+
+public class RetransmitterTest {
+    private final Question question = new Question("Zelda._http._tcp.local.", Question.QType.SRV,
+            Question.QClass.IN);
+
+    @Test
+    public void testBacksOffUntilAnswered() throws IOException, InterruptedException {
+        ReceiveEngine engine = new ReceiveEngine();
+        engine.start();
+        try {
+            AtomicBoolean answered = new AtomicBoolean();
+            List<Long> resent = new CopyOnWriteArrayList<>();
+            long start = System.nanoTime();
+            Retransmitter retransmitter = new Retransmitter(q -> answered.get(),
+                    q -> resent.add((System.nanoTime() - start) / 1000000), 50);
+            engine.runAndWait(() -> {
+                retransmitter.attach(engine);
+                retransmitter.watch(question);
+                retransmitter.watch(question);
+            });
+            // Re-asked after about 50, 150, and 350 ms
+            assertTrue("Re-asked three times: " + resent, awaitSize(resent, 3, 5000));
+            assertTrue("Intervals double: " + resent, resent.get(2) - resent.get(1) > resent.get(1) - resent.get(0));
+
+            answered.set(true);
+            int[] resentBeforeAnswer = new int[1];
+            engine.runAndWait(() -> {
+                retransmitter.cancelAnswered();
+                assertTrue("Answered question cancelled", retransmitter.size() == 0);
+                resentBeforeAnswer[0] = resent.size();
+            });
+            Thread.sleep(500);
+            assertTrue("Not re-asked after the answer: " + resent, resent.size() == resentBeforeAnswer[0]);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testDetachCancelsEverything() throws IOException, InterruptedException {
+        ReceiveEngine engine = new ReceiveEngine();
+        engine.start();
+        try {
+            List<Question> resent = new CopyOnWriteArrayList<>();
+            Retransmitter retransmitter = new Retransmitter(q -> false, resent::add, 50);
+            engine.runAndWait(() -> {
+                retransmitter.attach(engine);
+                retransmitter.watch(question);
+                retransmitter.detach();
+                retransmitter.watch(question);
+            });
+            Thread.sleep(200);
+            assertTrue("Nothing re-asked: " + resent, resent.isEmpty());
+        } finally {
+            engine.close();
+        }
+    }
+
+    /**
+     * Wait up to timeoutMillis for list to hold at least size elements.
+     *
+     * @return true if it did
+     */
+    private static boolean awaitSize(List<?> list, int size, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (list.size() < size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return list.size() >= size;
+    }
+}
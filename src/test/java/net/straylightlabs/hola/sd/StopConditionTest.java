@@ -0,0 +1,90 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.straylightlabs.hola.sd;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StopConditionTest {
+    @Test
+    public void testDeadlineOnly() {
+        StopCondition condition = StopCondition.after(500);
+        assertTrue(condition.getTimeout() == 500);
+        assertFalse("No early exit", condition.isMet(names("annuvin", "zelda"), 10000));
+        assertTrue("No quiet period", condition.untilQuiet(0) == Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testExpectedCount() {
+        StopCondition condition = StopCondition.after(500).whenFound(2);
+        assertFalse("One isn't enough", condition.isMet(names("annuvin"), 0));
+        assertTrue("Two is enough", condition.isMet(names("annuvin", "zelda"), 0));
+    }
+
+    @Test
+    public void testCachedAnswer() {
+        assertTrue("Deadline accepts any answer", StopCondition.after(500).isMetBy(names()));
+        assertTrue("Quiet period accepts any answer", StopCondition.after(500).whenQuietFor(100).isMetBy(names()));
+        StopCondition named = StopCondition.after(500).whenFound("printer");
+        assertFalse("Named instance missing", named.isMetBy(names("zelda")));
+        assertTrue("Named instance present", named.isMetBy(names("zelda", "printer")));
+        StopCondition counted = StopCondition.after(500).whenFound(2);
+        assertFalse("Too few instances", counted.isMetBy(names("zelda")));
+        assertTrue("Enough instances", counted.isMetBy(names("zelda", "annuvin")));
+    }
+
+    @Test
+    public void testNamedInstance() {
+        StopCondition condition = StopCondition.after(500).whenFound("annuvin");
+        assertFalse("Other instances don't count", condition.isMet(names("zelda"), 0));
+        assertTrue("Named instance found", condition.isMet(names("zelda", "annuvin"), 0));
+    }
+
+    @Test
+    public void testQuietPeriod() {
+        StopCondition condition = StopCondition.after(500).whenQuietFor(50);
+        assertFalse("Not quiet yet", condition.isMet(Collections.emptySet(), 20));
+        assertTrue("Time left until quiet", condition.untilQuiet(20) == 30);
+        assertTrue("Quiet", condition.isMet(Collections.emptySet(), 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeTimeout() {
+        StopCondition.after(-1);
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015-2018 Todd Kulesza <todd@dropline.net>
+ *
+ * This file is part of Hola.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package net.straylightlabs.hola.sd;
+
+import net.straylightlabs.hola.dns.Domain;
+import net.straylightlabs.hola.dns.PtrRecord;
+import net.straylightlabs.hola.dns.Question;
+import net.straylightlabs.hola.dns.Record;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Builds Instances from recorded packets, the way a Query would.
+ */
+final class TestInstances {
+    private TestInstances() {
+    }
+
+    /**
+     * Build an Instance for each of records' PTR records that answers a question for service.
+     */
+    static Set<Instance> fromRecords(Service service, Collection<Record> records) {
+        Question question = new Question(service, Domain.LOCAL);
+        RecordIndex index = new RecordIndex(records);
+        Set<Instance> instances = new HashSet<>();
+        for (Record record : records) {
+            if (record instanceof PtrRecord && question.answeredBy(record)) {
+                instances.add(Instance.createFromRecords((PtrRecord) record, index));
+            }
+        }
+        return instances;
+    }
+}